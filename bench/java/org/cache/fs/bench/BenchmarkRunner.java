@@ -0,0 +1,43 @@
+package org.cache.fs.bench;
+
+import java.io.File;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the registry benchmarks once per thread count with the GC profiler attached, such that
+ * both contention and the allocation rate per operation (gc.alloc.rate.norm) are reported.
+ *
+ * Thread counts are read from the bench.threads system property, defaulting to 1,2,4,8,16,
+ * and the results of each run are written as JSON to bench.output, defaulting to target/bench.
+ * Any other arguments are passed through to JMH, e.g. "-p backend=local" or a benchmark regex.
+ */
+public class BenchmarkRunner {
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions cli = new CommandLineOptions(args);
+    File output = new File(System.getProperty("bench.output", "target/bench"));
+
+    output.mkdirs();
+
+    for(String threads : System.getProperty("bench.threads", "1,2,4,8,16").split(",")) {
+      int t = Integer.parseInt(threads.trim());
+      ChainedOptionsBuilder opts = new OptionsBuilder()
+        .parent(cli)
+        .threads(t)
+        .addProfiler(GCProfiler.class)
+        .resultFormat(ResultFormatType.JSON)
+        .result(new File(output, "threads-"+t+".json").getPath());
+
+      if(cli.getIncludes().isEmpty()) {
+        opts.include(RegistryBenchmark.class.getSimpleName());
+      }
+
+      new Runner(opts.build()).run();
+    }
+  }
+}
@@ -0,0 +1,206 @@
+package org.cache.fs.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.file.Files;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.cache.fs.CacheRegistry;
+import org.cache.fs.impl.HadoopCacheRegistry;
+import org.cache.fs.impl.LocalCacheRegistry;
+
+/**
+ * Measures the hot paths of a CacheRegistry against each supported backend:
+ *
+ *   local        - LocalCacheRegistry on a temporary directory
+ *   hadoop-local - HadoopCacheRegistry on the local filesystem
+ *   hdfs         - HadoopCacheRegistry on an in-process MiniDFSCluster
+ *
+ * Every file is registered during setup so each benchmark measures the steady state a long
+ * running application sees. Each thread works through its own files for move and cold
+ * registration such that those benchmarks never race each other.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegistryBenchmark {
+  @Param({"local", "hadoop-local", "hdfs"})
+  public String backend;
+
+  @Param({"256"})
+  public int files;
+
+  @Param({"4096"})
+  public int fileSize;
+
+  private CacheRegistry _registry;
+  private MiniDFSCluster _cluster;
+  private FileSystem _fs;
+  private File _tmp;
+  private String _root;
+  private final AtomicInteger _threads = new AtomicInteger();
+
+  @Setup
+  public void setup() throws IOException {
+    Logger.getRootLogger().setLevel(Level.ERROR);
+
+    _tmp = Files.createTempDirectory("cache-registry-bench").toFile();
+
+    if("hdfs".equals(backend)) {
+      Configuration conf = new Configuration();
+
+      conf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, new File(_tmp, "dfs").getAbsolutePath());
+      _cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+      _fs = _cluster.getFileSystem();
+      _root = "/bench";
+      _registry = new HadoopCacheRegistry(_cluster.getConfiguration(0));
+    } else {
+      _fs = FileSystem.getLocal(new Configuration()).getRaw();
+      _root = new File(_tmp, "data").getAbsolutePath();
+      _registry = "local".equals(backend) ? new LocalCacheRegistry() : new HadoopCacheRegistry();
+    }
+
+    for(int i = 0; i < files; i++) {
+      write(file(i));
+      _registry.registerFile(file(i));
+    }
+
+    _registry.registerDirectory(_root);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    _registry.destroy();
+
+    if(_cluster != null) {
+      _cluster.shutdown();
+    }
+
+    FileUtils.deleteQuietly(_tmp);
+  }
+
+  /**
+   * The files owned by a single benchmark thread
+   */
+  @State(Scope.Thread)
+  public static class ThreadFiles {
+    int next;
+    String cold;
+    String from;
+    String to;
+
+    @Setup
+    public void setup(RegistryBenchmark bench) throws IOException {
+      int id = bench._threads.getAndIncrement();
+
+      next = id;
+      cold = bench._root+"/cold-"+id;
+      from = bench._root+"/move-"+id;
+      to = bench._root+"/moved-"+id;
+
+      bench.write(cold);
+      bench.write(from);
+      bench._registry.registerFile(from);
+    }
+
+    /**
+       * @return the next registered file, cycling through them all
+       */
+    String next(RegistryBenchmark bench) {
+      next = (next + 1) % bench.files;
+      return bench.file(next);
+    }
+  }
+
+  @Benchmark
+  public String registerFile(ThreadFiles t) {
+    return _registry.registerFile(t.next(this));
+  }
+
+  @Benchmark
+  public String registerFileCold(ThreadFiles t) {
+    String path = _registry.registerFile(t.cold);
+
+    _registry.unregister(t.cold);
+
+    return path;
+  }
+
+  @Benchmark
+  public InputStream getStream(ThreadFiles t) {
+    return _registry.getStream(t.next(this));
+  }
+
+  @Benchmark
+  public Boolean isStaleFile(ThreadFiles t) {
+    return _registry.isStale(t.next(this));
+  }
+
+  @Benchmark
+  public Boolean isStaleDirectory() {
+    return _registry.isStale(_root);
+  }
+
+  @Benchmark
+  public List<String> list() {
+    return _registry.list(_root);
+  }
+
+  @Benchmark
+  public Boolean exists(ThreadFiles t) {
+    return _registry.exists(t.next(this));
+  }
+
+  @Benchmark
+  public String move(ThreadFiles t) {
+    _registry.move(t.from, t.to);
+
+    return _registry.move(t.to, t.from);
+  }
+
+  String file(int i) {
+    return _root+"/file-"+i;
+  }
+
+  void write(String path) throws IOException {
+    FSDataOutputStream out = _fs.create(new Path(path), true);
+
+    try {
+      out.write(new byte[fileSize]);
+    } finally {
+      out.close();
+    }
+  }
+}
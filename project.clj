@@ -11,8 +11,15 @@
   :java-source-paths ["src/java"]
   :dependencies [[org.clojure/clojure "1.5.1"]
                  [org.apache.commons/commons-lang3 "3.1"]
-                 [org.apache.hadoop/hadoop-common "2.2.0"]
+                 [org.apache.hadoop/hadoop-common "2.7.3"]
+                 [org.apache.hadoop/hadoop-hdfs "2.7.3"]
                  [commons-io "2.4"]
                  [log4j "1.2.16"]]
+  :profiles {:dev {:dependencies [[org.apache.hadoop/hadoop-minicluster "2.7.3"]]}
+             :bench {:java-source-paths ["bench/java"]
+                     :dependencies [[org.openjdk.jmh/jmh-core "1.37"]
+                                    [org.openjdk.jmh/jmh-generator-annprocess "1.37"]
+                                    [org.apache.hadoop/hadoop-minicluster "2.7.3"]]}}
   :aliases {"docs" "javadoc"
-            "fresh" ["do" "clean," "uberjar"]})
+            "fresh" ["do" "clean," "uberjar"]
+            "bench" ["with-profile" "+bench" "run" "-m" "org.cache.fs.bench.BenchmarkRunner"]})
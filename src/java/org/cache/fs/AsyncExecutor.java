@@ -0,0 +1,154 @@
+package org.cache.fs;
+
+import java.lang.reflect.Method;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the blocking calls behind the asynchronous registry methods.
+ *
+ * By default calls run on a cached pool of daemon threads created on first use. A caller may
+ * instead supply its own executor, which is never shut down by the registry, or ask for a new
+ * virtual thread per call on runtimes which support them.
+ *
+ * The executor is published through a volatile field, so submitting a call takes no lock once the
+ * default pool exists. Once shut down every call is rejected rather than starting a new pool.
+ */
+class AsyncExecutor implements Executor {
+  static Logger log = Logger.getLogger(AsyncExecutor.class);
+
+  private volatile Executor _executor = null;
+  private ExecutorService _owned = null;
+  private boolean _shutdown = false;
+
+  /**
+     * Run the call on the current executor
+     *
+     * @return a future completed with the result of the call, or exceptionally should it throw
+     *         or be rejected, as it is once shut down
+     */
+  public <T> CompletableFuture<T> submit(Supplier<T> call) {
+    try {
+      return CompletableFuture.supplyAsync(call, executor());
+    } catch(RejectedExecutionException e) {
+      CompletableFuture<T> rejected = new CompletableFuture<T>();
+      rejected.completeExceptionally(e);
+      return rejected;
+    }
+  }
+
+  /**
+     * Run the task on the current executor
+     *
+     * @throws RejectedExecutionException if shut down
+     */
+  public void execute(Runnable task) {
+    executor().execute(task);
+  }
+
+  /**
+     * Run calls on the given executor, or on the default pool if null
+     */
+  public synchronized void setExecutor(Executor executor) {
+    if(_shutdown) {
+      return;
+    }
+
+    release();
+    _executor = executor;
+  }
+
+  /**
+     * Run each call on its own virtual thread, falling back to the default pool should the
+     * runtime not support virtual threads
+     *
+     * @return true if virtual threads are in use
+     */
+  public synchronized boolean setVirtualThreads(boolean virtual) {
+    if(_shutdown) {
+      return false;
+    }
+
+    release();
+
+    if(!virtual) {
+      return false;
+    }
+
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      _owned = (ExecutorService)factory.invoke(null);
+      _executor = _owned;
+      return true;
+    } catch(ReflectiveOperationException e) {
+      log.warn("Virtual threads are not supported by this runtime; using the default pool.");
+      return false;
+    }
+  }
+
+  /**
+     * Shut down any executor created by the registry, a caller supplied executor being only
+     * forgotten, and reject every later call
+     */
+  public synchronized void shutdown() {
+    _shutdown = true;
+    release();
+  }
+
+  /**
+     * Shut down any executor created by the registry such that another may take its place
+     */
+  private synchronized void release() {
+    if(_owned != null) {
+      _owned.shutdown();
+      _owned = null;
+    }
+
+    _executor = null;
+  }
+
+  /**
+     * @throws RejectedExecutionException if shut down
+     */
+  private Executor executor() {
+    Executor executor = _executor;
+
+    if(executor != null) {
+      return executor;
+    }
+
+    synchronized(this) {
+      if(_shutdown) {
+        throw new RejectedExecutionException("The registry has been destroyed; not running the call.");
+      }
+
+      if(_executor == null) {
+        _owned = Executors.newCachedThreadPool(daemonThreads("cache-registry-io"));
+        _executor = _owned;
+      }
+
+      return _executor;
+    }
+  }
+
+  private static ThreadFactory daemonThreads(final String name) {
+    final AtomicInteger count = new AtomicInteger();
+
+    return new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name+"-"+count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+}
@@ -2,325 +2,1942 @@ package org.cache.fs;
 
 import java.lang.StringBuilder;
 
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.HashMap;
-
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import java.io.EOFException;
+import java.io.File;
 import java.io.InputStream;
+import java.io.IOException;
+
+import java.lang.management.ManagementFactory;
 
+import java.nio.ByteBuffer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 
 import org.cache.fs.sys.CachedFile;
 import org.cache.fs.sys.CachedDirectory;
+import org.cache.fs.sys.PathStatus;
 
 /**
  * Creates a fail-open system for managing file system objects.
  *
+ * A single registry is safe to share between threads. Lookups of paths which are already
+ * registered never take a lock; registration is atomic per path such that concurrent callers
+ * racing on the same path will all observe the same cached object.
+ *
+ * With background refresh enabled registered paths are revalidated on dedicated threads, changes
+ * are applied and reported to any RegistryListener, and request threads skip staleness checks.
+ *
+ * Concurrent callers registering or reloading the same path are coalesced such that the
+ * filesystem is only called once; the others wait for, and share, its result.
+ *
+ * Counters and latency histograms for registry operations and filesystem calls are kept
+ * throughout, and may be read over JMX once registerMBean is called or forwarded to a MetricsSink.
+ *
+ * Each blocking lookup also has an asynchronous counterpart returning a CompletableFuture which
+ * runs on a pluggable executor, such that many lookups may be in flight at once.
+ *
  * @author Brennon York
  */
 public abstract class CacheRegistry {
   static Logger log = Logger.getLogger(CacheRegistry.class);
 
-  private Map<String,CachedFile> _fileRegistry = null;
-  private Map<String,CachedDirectory> _directoryRegistry = null;
-  private Boolean _mkpath = false;
+  /** Default memory budget, in bytes, for file contents held by getBytes and getByteBuffer */
+  public static final long DEFAULT_CONTENT_CACHE_CAPACITY = 64L * 1024 * 1024;
+
+  /** Default shortest interval, in milliseconds, between background checks of a path */
+  public static final long DEFAULT_MIN_REFRESH_INTERVAL = 1000;
+
+  /** Default longest interval, in milliseconds, between background checks of a quiet path */
+  public static final long DEFAULT_MAX_REFRESH_INTERVAL = 60000;
+
+  /** Number of threads polling paths when background refresh is enabled */
+  public static final int DEFAULT_REFRESH_THREADS = 2;
+
+  /** Default number of threads listing directories concurrently in registerTree and restoreSnapshot */
+  public static final int DEFAULT_TREE_PARALLELISM = 16;
+
+  /** Default shortest time, in milliseconds, between two scans of a deep directory's subtree */
+  public static final long DEFAULT_DEEP_SCAN_INTERVAL = 1000;
+
+  /** Default number of files prefetched at once when prefetching is enabled */
+  public static final int DEFAULT_PREFETCH_PARALLELISM = 4;
+
+  private ConcurrentMap<String,CachedFile> _fileRegistry = null;
+  private ConcurrentMap<String,CachedDirectory> _directoryRegistry = null;
+  private ContentCache _contentCache = null;
+  private ObjectCache _objectCache = null;
+  private LeasePool _leases = null;
+  private OpenFileTracker _openFiles = null;
+  private AsyncExecutor _async = null;
+  private SingleFlight _flights = null;
+  private RegistryMetrics _metrics = null;
+  private volatile ObjectName _mbeanName = null;
+  private volatile boolean _serveStale = false;
+  private CopyOnWriteArrayList<RegistryListener> _listeners = null;
+  private volatile RefreshScheduler _refresher = null;
+  private volatile Prefetcher _prefetcher = null;
+  private ForkJoinPool _treePool = null;
+  private int _treeParallelism = DEFAULT_TREE_PARALLELISM;
+  private volatile long _minRefreshInterval = DEFAULT_MIN_REFRESH_INTERVAL;
+  private volatile long _maxRefreshInterval = DEFAULT_MAX_REFRESH_INTERVAL;
+  private volatile Fingerprint _fingerprint = Fingerprint.MODIFICATION_TIME;
+  private volatile Boolean _mkpath = false;
 
   public CacheRegistry() throws OutOfMemoryError {
-    _fileRegistry = new HashMap<String,CachedFile>();
-    _directoryRegistry = new HashMap<String,CachedDirectory>();
+    _fileRegistry = new ConcurrentHashMap<String,CachedFile>();
+    _directoryRegistry = new ConcurrentHashMap<String,CachedDirectory>();
+    _contentCache = new ContentCache(DEFAULT_CONTENT_CACHE_CAPACITY);
+    _objectCache = new ObjectCache();
+    _leases = new LeasePool();
+    _openFiles = new OpenFileTracker();
+    _async = new AsyncExecutor();
+    _flights = new SingleFlight();
+    _metrics = new RegistryMetrics();
+    _listeners = new CopyOnWriteArrayList<RegistryListener>();
 
     if(_fileRegistry == null) {
       throw new OutOfMemoryError("Could not initialize file registry");
     }
 
-    if(_directoryRegistry == null) {
-      throw new OutOfMemoryError("Could not initialize directory registry");
+    if(_directoryRegistry == null) {
+      throw new OutOfMemoryError("Could not initialize directory registry");
+    }
+  }
+
+  /**
+     * Register a new file with the Registry
+     */
+  public String registerFile(String filePath) {
+    return registerFile(filePath, _mkpath);
+  }
+
+  /**
+     * Register a new file with the Registry and create the path if set
+     */
+  public String registerFile(String path, Boolean mkfile) {
+    long start = System.nanoTime();
+
+    try {
+      if(StringUtils.isBlank(path)) {
+        logBadPath("registerFile");
+        return null;
+      }
+
+      if(isFile(path) && _fileRegistry.containsKey(path)) {
+        return path;
+      } else if(assertRegisterFile(path, mkfile) != null) {
+        return path;
+      }
+
+      return null;
+    } finally {
+      _metrics.record("registry.registerFile", start);
+    }
+  }
+
+  /**
+     * Register a new directory with the Registry
+     */
+  public String registerDirectory(String dirPath) {
+    return registerDirectory(dirPath, _mkpath);
+  }
+
+  /**
+     * Register a new directory with the Registry and create the path if set
+     */
+  public String registerDirectory(String path, Boolean mkdir) {
+    long start = System.nanoTime();
+
+    try {
+      if(StringUtils.isBlank(path)) {
+        logBadPath("registerDirectory");
+        return null;
+      }
+
+      if(isDirectory(path) && _directoryRegistry.containsKey(path)) {
+        return path;
+      } else if(assertRegisterDirectory(path, mkdir) != null) {
+        return path;
+      }
+
+      return null;
+    } finally {
+      _metrics.record("registry.registerDirectory", start);
+    }
+  }
+
+  /**
+     * Register a directory along with every file and directory below it
+     */
+  public List<String> registerTree(String path, int maxDepth) {
+    return registerTree(path, maxDepth, null);
+  }
+
+  /**
+     * Register a directory along with the files and directories below it
+     *
+     * The subtree is walked in parallel with one listing per directory. Each child is registered
+     * from the status returned by its parent's listing rather than being looked up again, and
+     * files are registered without opening a descriptor; each is opened on its first read.
+     *
+     * @param maxDepth the number of levels below the directory to register, zero for the
+     *        directory alone, or negative for the whole subtree
+     * @param filter accepts the paths of the files to register, or null to register every file;
+     *        directories are always walked down to maxDepth
+     * @return every path registered under the tree, including the directory itself, else null if
+     *         the directory could not be registered
+     */
+  public List<String> registerTree(String path, int maxDepth, Predicate<String> filter) {
+    long start = System.nanoTime();
+
+    try {
+      if(registerDirectory(path) == null) {
+        return null;
+      }
+
+      CachedDirectory rd = _directoryRegistry.get(path);
+
+      if(rd == null) {
+        logRegistrationFailed("directory", path);
+        return null;
+      }
+
+      Collection<String> registered = new ConcurrentLinkedQueue<String>();
+
+      registered.add(path);
+
+      treePool().invoke(new TreeWalker(this, path, rd, maxDepth, filter, registered));
+
+      log.debug("Registered "+registered.size()+" paths under the tree at "+path+".");
+
+      return new ArrayList<String>(registered);
+    } finally {
+      _metrics.record("registry.registerTree", start);
+    }
+  }
+
+  /**
+     * List a registered directory once and register its children from the listing on behalf of
+     * registerTree
+     *
+     * @return the registered subdirectories to walk next
+     */
+  List<Entry<String,CachedDirectory>> registerChildren(String path, CachedDirectory rd, Predicate<String> filter,
+                                                       Collection<String> registered) {
+    List<Entry<String,CachedDirectory>> subdirs = new ArrayList<Entry<String,CachedDirectory>>();
+    Children children = listChildren(path, rd);
+
+    if(children == null) {
+      return subdirs;
+    }
+
+    for(Entry<String,CachedFile> kv : children.files.entrySet()) {
+      if(filter == null || filter.test(kv.getKey())) {
+        if(assertRegister(kv.getKey(), _fileRegistry, kv.getValue()) != null) {
+          registered.add(kv.getKey());
+        }
+      }
+    }
+
+    for(Entry<String,CachedDirectory> kv : children.directories.entrySet()) {
+      CachedDirectory sub = assertRegister(kv.getKey(), _directoryRegistry, kv.getValue());
+
+      if(sub != null) {
+        registered.add(kv.getKey());
+        subdirs.add(new SimpleImmutableEntry<String,CachedDirectory>(kv.getKey(), sub));
+      }
+    }
+
+    return subdirs;
+  }
+
+  /**
+     * Set the number of threads listing directories concurrently in registerTree and
+     * restoreSnapshot, at least one. Walks already running finish on the previous threads.
+     */
+  public synchronized void setTreeParallelism(int parallelism) {
+    _treeParallelism = Math.max(1, parallelism);
+
+    if(_treePool != null) {
+      _treePool.shutdown();
+      _treePool = null;
+    }
+  }
+
+  /**
+     * @return the pool shared by every walk of this registry, created on first use
+     */
+  private synchronized ForkJoinPool treePool() {
+    if(_treePool == null) {
+      _treePool = new ForkJoinPool(_treeParallelism);
+    }
+
+    return _treePool;
+  }
+
+  /**
+     * Set whether a registered directory is also found stale when a file or directory anywhere
+     * below it changes
+     *
+     * By default a directory is only stale once its direct children are added or removed. With
+     * deep staleness enabled a fingerprint of the modification times, lengths, and file ids of
+     * the whole subtree is kept as well. Checks answer from the most recent scan and, at most once
+     * per DEFAULT_DEEP_SCAN_INTERVAL, start a rescan on the async executor; a change is therefore
+     * reported by the first check after the rescan which found it. Each scan lists every
+     * directory below the path once, so its cost grows with the number of directories in the
+     * subtree, but it is never paid by a request thread other than the one enabling the setting.
+     *
+     * @return true if the setting was applied, else null if the directory could not be registered
+     */
+  public Boolean setDeepStaleness(String path, boolean deep) {
+    if(registerDirectory(path) == null) {
+      return null;
+    }
+
+    while(true) {
+      CachedDirectory rd = _directoryRegistry.get(path);
+
+      if(rd == null) {
+        logRegistrationFailed("directory", path);
+        return null;
+      }
+
+      CachedDirectory replacement = null;
+
+      if(deep && !(rd instanceof DeepDirectory)) {
+        replacement = new DeepDirectory(rd, new SubtreeFingerprint(this, path, DEFAULT_DEEP_SCAN_INTERVAL, _async));
+      } else if(!deep && rd instanceof DeepDirectory) {
+        replacement = ((DeepDirectory)rd).unwrap();
+      } else {
+        return true;
+      }
+
+      if(_directoryRegistry.replace(path, rd, replacement)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+     * Assert all assignments into the registry with the given path are complete
+     *
+     * Registration is atomic per path; if another thread registered the path first then its
+     * object is kept and returned in place of the one provided.
+     *
+     * @return the object now registered under the path, else null if nothing was registered
+     */
+  private <T> T assertRegister(String path, ConcurrentMap<String,T> registry, T registeredPath) {
+    if(registry == null) {
+      log.error("Found uninitialized registry"+regErrStr(path));
+      return null;
+    }
+
+    if(registeredPath == null) {
+      log.warn("Could not create a register object for path provided"+regErrStr(path));
+      return null;
+    }
+
+    T prevPath = registry.putIfAbsent(path, registeredPath);
+
+    if(prevPath != null) {
+      log.debug("Path "+path+" was concurrently registered; using the existing object.");
+      return prevPath;
+    }
+
+    log.debug("Successfully registered path "+path+".");
+    _metrics.increment("register");
+
+    registered(path, registeredPath);
+
+    RefreshScheduler refresher = _refresher;
+
+    if(refresher != null) {
+      refresher.schedule(path);
+    }
+
+    return registeredPath;
+  }
+
+  /**
+     * Register and open a file atomically such that only one file descriptor is ever published
+     * for the path
+     *
+     * The file is opened before it is made visible to other threads. Should another thread win
+     * the registration the descriptor opened here is closed and the winning object returned.
+     *
+     * @return the CachedFile now registered under the path, else null if an error occurred
+     */
+  private CachedFile assertRegisterFile(final String path, final Boolean mkfile) {
+    return _flights.run("file:"+path, new Supplier<CachedFile>() {
+      public CachedFile get() {
+        CachedFile registered = _fileRegistry.get(path);
+
+        // Registered by a flight which completed before this one began
+        if(registered != null) {
+          return registered;
+        }
+
+        return registerFileOnce(path, mkfile);
+      }
+    });
+  }
+
+  private CachedFile registerFileOnce(String path, Boolean mkfile) {
+    CachedFile rf = registerCacheFile(path, mkfile);
+
+    if(rf != null) {
+      rf.open();
+    }
+
+    CachedFile registered = assertRegister(path, _fileRegistry, rf);
+
+    if(registered != null && registered != rf) {
+      rf.close();
+    }
+
+    if(registered != null) {
+      _openFiles.touch(path, registered);
+    }
+
+    return registered;
+  }
+
+  /**
+     * Register a directory such that concurrent callers registering the same path only list and
+     * stat it once
+     *
+     * @return the CachedDirectory now registered under the path, else null if an error occurred
+     */
+  private CachedDirectory assertRegisterDirectory(final String path, final Boolean mkdir) {
+    return _flights.run("directory:"+path, new Supplier<CachedDirectory>() {
+      public CachedDirectory get() {
+        CachedDirectory registered = _directoryRegistry.get(path);
+
+        if(registered != null) {
+          return registered;
+        }
+
+        registered = assertRegister(path, _directoryRegistry, registerCacheDirectory(path, mkdir));
+
+        Prefetcher prefetcher = _prefetcher;
+
+        if(registered != null && prefetcher != null) {
+          prefetcher.directory(path);
+        }
+
+        return registered;
+      }
+    });
+  }
+
+  /**
+     * Reload a stale file once on behalf of every concurrent caller. Callers arriving while the
+     * reload is in flight wait for it; with serve stale enabled callers should check isReloading
+     * first and serve what is held instead.
+     *
+     * @return the current InputStream for the file
+     */
+  private InputStream reload(String path, final CachedFile rf) {
+    InputStream in = _flights.run("reload:"+path, new Supplier<InputStream>() {
+      public InputStream get() {
+        return reopenIfStale(rf);
+      }
+    });
+
+    _openFiles.touch(path, rf);
+
+    return in;
+  }
+
+  /**
+     * @return true if serve stale is enabled and the file is being reloaded by another caller
+     */
+  private boolean isReloading(String path) {
+    return _serveStale && _flights.isInFlight("reload:"+path);
+  }
+
+  /**
+     * Reopen a stale file while holding its monitor such that concurrent callers observing the
+     * same change only close and reopen the descriptor once
+     *
+     * @return the current InputStream for the file
+     */
+  private InputStream reopenIfStale(CachedFile rf) {
+    synchronized(rf) {
+      if(rf.isStale()) {
+        _metrics.increment("reload");
+        rf.close();
+        rf.setStaleFlag();
+        return rf.open();
+      }
+    }
+
+    return rf.cachedInputStream();
+  }
+
+  /**
+     * Reset the stale flag for a directory while holding its monitor, prefetching any files added
+     * to it when prefetching is enabled
+     */
+  private void refreshIfStale(CachedDirectory rd) {
+    synchronized(rd) {
+      if(rd.isStale()) {
+        Prefetcher prefetcher = _prefetcher;
+        List<String> before = prefetcher != null ? rd.list() : null;
+
+        rd.setStaleFlag();
+
+        if(prefetcher != null) {
+          prefetcher.listingChanged(before, rd.list());
+        }
+      }
+    }
+  }
+
+  /**
+     * @return true or false given whether the path is a file or directory
+     */
+  public Boolean exists(String path) {
+    long start = System.nanoTime();
+
+    try {
+      return (isFile(path) || isDirectory(path));
+    } finally {
+      _metrics.record("registry.exists", start);
+    }
+  }
+
+  /**
+     * @return true if path was removed, false otherwise
+     */
+  public Boolean delete(String path) {
+    long start = System.nanoTime();
+
+    try {
+      return deletePath(path);
+    } finally {
+      _metrics.record("registry.delete", start);
+    }
+  }
+
+  /**
+     * Return the list of files for the given path provided
+     *
+     * @return If a directory is given, then all objects under the directory will be returned
+     *         within the array. If a file is given, then the path provided is returned as an
+     *         array of a single element.
+     */
+  public List<String> list(String path) {
+    long start = System.nanoTime();
+
+    try {
+      if(StringUtils.isBlank(path)) {
+        logBadPath("listFiles");
+        return new ArrayList<String>();
+      }
+
+      if(isFile(path)) {
+        return Arrays.asList(new String[]{path});
+      } else if(isDirectory(path)) {
+        CachedDirectory rd = _directoryRegistry.get(path);
+
+        if(rd != null) {
+          if(!isRefreshed(path) && rd.isStale()) {
+            refreshIfStale(rd);
+          }
+
+          return rd.list();
+        } else {
+          logUnregistered("directory", path);
+
+          if((rd = assertRegisterDirectory(path, _mkpath)) != null) {
+            return rd.list();
+          } else {
+            logRegistrationFailed("directory", path);
+            return new ArrayList<String>();
+          }
+        }
+      } else {
+        logBadType(path);
+      }
+
+      return new ArrayList<String>();
+    } finally {
+      _metrics.record("registry.list", start);
+    }
+  }
+
+  /**
+     * Move a file into the new path
+     *
+     * @param currPath a file path, cannot be a directory
+     * @param newPath the file or directory with which to be renamed or placed into
+     *
+     * @return the newPath if successful, else null for any errors
+     */
+  public String move(String currPath, String newPath) {
+    long start = System.nanoTime();
+
+    try {
+      String actNewPath = null;
+
+      if(StringUtils.isBlank(currPath) ||
+         StringUtils.isBlank(newPath)) {
+        logBadPath("move");
+        return null;
+      }
+
+      if(isFile(currPath)) {
+        if(_fileRegistry.containsKey(currPath)) {
+          unregister(currPath);
+        }
+
+        actNewPath = moveFile(currPath, newPath, _mkpath);
+
+        if(actNewPath != null) {
+          unregisterQuietly(actNewPath);
+
+          if(assertRegisterFile(actNewPath, _mkpath) != null) {
+            return actNewPath;
+          } else {
+            logRegistrationFailed("file", newPath);
+            return null;
+          }
+        } else {
+          logBadMove("file",currPath,newPath);
+          return null;
+        }
+      } else if(isDirectory(currPath)) {
+        if(_directoryRegistry.containsKey(currPath)) {
+          unregister(currPath);
+        }
+
+        actNewPath = moveDirectory(currPath, newPath, _mkpath);
+
+        if(actNewPath != null) {
+          unregisterQuietly(actNewPath);
+
+          if(assertRegisterDirectory(actNewPath, _mkpath) != null) {
+            return actNewPath;
+          } else {
+            logRegistrationFailed("directory", newPath);
+            return null;
+          }
+        } else {
+          logBadMove("directory",currPath,newPath);
+          return null;
+        }
+      } else {
+        logBadType(currPath);
+      }
+
+      return null;
+    } finally {
+      _metrics.record("registry.move", start);
+    }
+  }
+
+  /**
+     * Check if any changes have occurred to the path specified.
+     *
+     * This is useful for applications leveraging a CacheRegistry and using it to load or
+     * serialize data into Java objects.
+     *
+     * Paths refreshed in the background are answered from memory: true only while a change found
+     * by the background refresh is still being applied.
+     */
+  public Boolean isStale(String path) {
+    long start = System.nanoTime();
+
+    try {
+      if(StringUtils.isBlank(path)) {
+        logBadPath("isStale");
+        return null;
+      }
+
+      // Read once, as the refresh may be disabled concurrently
+      RefreshScheduler refresher = _refresher;
+
+      if(isRefreshed(refresher, path)) {
+        return refresher.isPending(path);
+      }
+
+      // Registered paths are answered by their entry without first statting the path, such that
+      // watched entries answer from their events and deleted files are reported stale
+      CachedFile rf = _fileRegistry.get(path);
+
+      if(rf != null) {
+        return rf.isStale();
+      }
+
+      CachedDirectory rd = _directoryRegistry.get(path);
+
+      if(rd != null) {
+        return rd.isStale();
+      }
+
+      if(isFile(path)) {
+        logUnregistered("file", path);
+
+        if((rf = assertRegisterFile(path, _mkpath)) != null) {
+          return rf.isStale();
+        } else {
+          logRegistrationFailed("file", path);
+          return null;
+        }
+      } else if(isDirectory(path)) {
+        logUnregistered("directory", path);
+
+        if((rd = assertRegisterDirectory(path, _mkpath)) != null) {
+          return rd.isStale();
+        } else {
+          logRegistrationFailed("directory", path);
+          return null;
+        }
+      } else {
+        logBadType(path);
+      }
+
+      return null;
+    } finally {
+      _metrics.record("registry.isStale", start);
+    }
+  }
+
+  /**
+     * Return the native file stream object for the file at the given path
+     *
+     * This will return a cached InputStream if one was already opened and is, therefore,
+     * performance-safe for multiple calls to this method. If the cache is stale and the file
+     * has since been modified the system will close the old file descriptor, set the stale flag
+     * to the current value, and return the newly opened file. Only one of any concurrent callers
+     * observing the change will reopen the file.
+     *
+     * If the descriptor was closed to stay within setMaxOpenFiles or setIdleTimeout it is
+     * transparently reopened.
+     *
+     * As the reload closes the cached stream, callers always wait for a reload in flight, even
+     * with setServeStale enabled; readers which should not wait use acquire instead.
+     *
+     * @return A new instance of the InputStream or the previously cached instance if one was
+     *         already opened.
+     */
+  public InputStream getStream(String path) {
+    long start = System.nanoTime();
+
+    try {
+      if(StringUtils.isBlank(path)) {
+        logBadPath("getStream");
+        return null;
+      }
+
+      CachedFile rf = lookupFile(path, "InputStream");
+      InputStream in = null;
+
+      if(rf == null) {
+        return null;
+      } else if(!isRefreshed(path) && rf.isStale()) {
+        in = reload(path, rf);
+      } else {
+        in = rf.cachedInputStream();
+      }
+
+      _openFiles.touch(path, rf);
+
+      return in;
+    } finally {
+      _metrics.record("registry.getStream", start);
+    }
+  }
+
+  /**
+     * Return the full contents of the file at the given path
+     *
+     * Contents are read once and then held in memory until the file is found to be stale, at
+     * which point they are reloaded. Cached contents are bounded by the capacity given to
+     * setContentCacheCapacity and evicted least recently used first. Only one thread loads the
+     * contents of a given file at a time.
+     *
+     * The returned array is shared between all callers and must not be modified; use
+     * getByteBuffer for a read-only view. Contents held compressed, see setContentCompression,
+     * are decompressed into a new array on every call.
+     *
+     * @return the bytes of the file, else null if the file could not be read
+     */
+  public byte[] getBytes(String path) {
+    long start = System.nanoTime();
+
+    try {
+      if(StringUtils.isBlank(path)) {
+        logBadPath("getBytes");
+        return null;
+      }
+
+      CachedFile rf = getCachedFile(path);
+
+      if(rf == null) {
+        return null;
+      }
+
+      ContentCache.Content c = _contentCache.get(path);
+
+      if(c != null && (c.version() == rf.version() || isReloading(path))) {
+        _metrics.increment("content.hit");
+        _contentCache.recordHit(path);
+        return c.bytes();
+      }
+
+      _metrics.increment("content.miss");
+      _contentCache.recordMiss(path);
+
+      synchronized(rf) {
+        c = _contentCache.get(path);
+
+        if(c != null && c.version() == rf.version()) {
+          return c.bytes();
+        }
+
+        long version = rf.version();
+        byte[] bytes = readContents(path, rf);
+
+        if(bytes != null) {
+          _contentCache.put(path, bytes, version);
+        }
+
+        return bytes;
+      }
+    } finally {
+      _metrics.record("registry.getBytes", start);
+    }
+  }
+
+  /**
+     * Return the full contents of the file at the given path as a read-only buffer
+     *
+     * @see #getBytes(String)
+     * @return a read-only ByteBuffer over the file contents, else null if the file could not be read
+     */
+  public ByteBuffer getByteBuffer(String path) {
+    byte[] bytes = getBytes(path);
+
+    if(bytes == null) {
+      return null;
+    }
+
+    return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+  }
+
+  /**
+     * Lease an independent reader over the file at the given path
+     *
+     * Every lease has its own position over a descriptor pooled between all leases on the same
+     * version of the file. Should the file be found stale a new version is opened for subsequent
+     * leases while the previous descriptor stays open until its last lease is closed, so no
+     * reader ever has its stream closed beneath it. Callers must close the lease when done.
+     *
+     * With setServeStale enabled, a caller finding the file stale while another is reloading it
+     * leases the version held rather than waiting for the reload.
+     *
+     * @return a new StreamLease, else null if the file could not be opened
+     */
+  public StreamLease acquire(String path) {
+    long start = System.nanoTime();
+
+    try {
+      if(StringUtils.isBlank(path)) {
+        logBadPath("acquire");
+        return null;
+      }
+
+      CachedFile rf = getCachedFile(path);
+
+      if(rf == null) {
+        return null;
+      }
+
+      return _leases.acquire(path, rf);
+    } finally {
+      _metrics.record("registry.acquire", start);
+    }
+  }
+
+  /**
+     * Read up to length bytes from the file at the given position
+     *
+     * Positioned reads share the file's single open descriptor but never move the position of
+     * the stream returned by getStream, so any number of threads may read the same file at
+     * arbitrary offsets at once.
+     *
+     * @return the number of bytes read, -1 if the position is at or past the end of the file, or
+     *         null if an error occurred
+     */
+  public Integer read(String path, long position, byte[] buffer, int offset, int length) {
+    long start = System.nanoTime();
+
+    try {
+      if(StringUtils.isBlank(path)) {
+        logBadPath("read");
+        return null;
+      }
+
+      CachedFile rf = getCachedFile(path);
+
+      if(rf == null) {
+        return null;
+      }
+
+      OpenFileTracker.OpenFile of = _openFiles.enter(path, rf);
+
+      try {
+        return rf.read(position, buffer, offset, length);
+      } catch(IOException e) {
+        logBadRead(path, position, e);
+        return null;
+      } finally {
+        _openFiles.exit(of);
+      }
+    } finally {
+      _metrics.record("registry.read", start);
+    }
+  }
+
+  /**
+     * Read from the file at the given position into the remaining space of the buffer
+     *
+     * @see #read(String, long, byte[], int, int)
+     * @return the number of bytes read, -1 if the position is at or past the end of the file, or
+     *         null if an error occurred
+     */
+  public Integer read(String path, long position, ByteBuffer dst) {
+    long start = System.nanoTime();
+
+    try {
+      if(StringUtils.isBlank(path)) {
+        logBadPath("read");
+        return null;
+      }
+
+      CachedFile rf = getCachedFile(path);
+
+      if(rf == null) {
+        return null;
+      }
+
+      OpenFileTracker.OpenFile of = _openFiles.enter(path, rf);
+
+      try {
+        return rf.read(position, dst);
+      } catch(IOException e) {
+        logBadRead(path, position, e);
+        return null;
+      } finally {
+        _openFiles.exit(of);
+      }
+    } finally {
+      _metrics.record("registry.read", start);
+    }
+  }
+
+  /**
+     * Read exactly length bytes from the file at the given position
+     *
+     * @see #read(String, long, byte[], int, int)
+     * @return true if the bytes were read, false if the end of the file was reached first, or null
+     *         if an error occurred
+     */
+  public Boolean readFully(String path, long position, byte[] buffer, int offset, int length) {
+    long start = System.nanoTime();
+
+    try {
+      if(StringUtils.isBlank(path)) {
+        logBadPath("readFully");
+        return null;
+      }
+
+      CachedFile rf = getCachedFile(path);
+
+      if(rf == null) {
+        return null;
+      }
+
+      OpenFileTracker.OpenFile of = _openFiles.enter(path, rf);
+
+      try {
+        rf.readFully(position, buffer, offset, length);
+        return true;
+      } catch(EOFException e) {
+        return false;
+      } catch(IOException e) {
+        logBadRead(path, position, e);
+        return null;
+      } finally {
+        _openFiles.exit(of);
+      }
+    } finally {
+      _metrics.record("registry.readFully", start);
+    }
+  }
+
+  /**
+     * Fill the remaining space of the buffer from the file at the given position
+     *
+     * @see #read(String, long, byte[], int, int)
+     * @return true if the buffer was filled, false if the end of the file was reached first, or
+     *         null if an error occurred
+     */
+  public Boolean readFully(String path, long position, ByteBuffer dst) {
+    long start = System.nanoTime();
+
+    try {
+      if(StringUtils.isBlank(path)) {
+        logBadPath("readFully");
+        return null;
+      }
+
+      CachedFile rf = getCachedFile(path);
+
+      if(rf == null) {
+        return null;
+      }
+
+      OpenFileTracker.OpenFile of = _openFiles.enter(path, rf);
+
+      try {
+        while(dst.hasRemaining()) {
+          int n = rf.read(position, dst);
+
+          if(n < 0) {
+            return false;
+          }
+
+          position += n;
+        }
+
+        return true;
+      } catch(IOException e) {
+        logBadRead(path, position, e);
+        return null;
+      } finally {
+        _openFiles.exit(of);
+      }
+    } finally {
+      _metrics.record("registry.readFully", start);
+    }
+  }
+
+  /**
+     * Return the object parsed from the file at the given path by the loader
+     *
+     * The loader is given a new stream over the file, which is closed once it returns, and its
+     * result is cached as the single object for the path. The file is only parsed again once it
+     * is found to be stale, or should a loader not equal to the one which parsed the held object
+     * be given. While one thread reparses a changed file every other caller continues to receive
+     * the previously parsed object; should the loader fail the previous object is kept and the
+     * file is not parsed again until it changes.
+     *
+     * Loaders are matched by equality, so the same loader instance should be passed on each call
+     * rather than a new capturing lambda. To hold more than one object per path, or to pass a new
+     * lambda on each call, use getObject(String, Object, Function) instead.
+     *
+     * @return the parsed object, else null if the file could not be read or has never parsed
+     */
+  public <T> T getObject(String path, Function<InputStream,T> loader) {
+    return getObject(path, null, loader);
+  }
+
+  /**
+     * Return the object parsed from the file at the given path by the loader, cached under the
+     * given key
+     *
+     * As getObject(String, Function), except that an object is held per path and key and the
+     * loader itself is never compared; every loader given the same key must parse the same object.
+     *
+     * @param key identifies the object parsed, e.g. its class, or null to hold one per path
+     * @return the parsed object, else null if the file could not be read or has never parsed
+     */
+  public <T> T getObject(String path, Object key, Function<InputStream,T> loader) {
+    long start = System.nanoTime();
+
+    try {
+      if(StringUtils.isBlank(path)) {
+        logBadPath("getObject");
+        return null;
+      }
+
+      CachedFile rf = getCachedFile(path);
+
+      if(rf == null) {
+        return null;
+      }
+
+      return _objectCache.get(path, key, rf, loader);
+    } finally {
+      _metrics.record("registry.getObject", start);
+    }
+  }
+
+  /**
+     * Forward every metric recorded from now on to the sink as well
+     */
+  public void addMetricsSink(MetricsSink sink) {
+    _metrics.addSink(sink);
+  }
+
+  public void removeMetricsSink(MetricsSink sink) {
+    _metrics.removeSink(sink);
+  }
+
+  /**
+     * Expose the registry's metrics over JMX under the name
+     * org.cache.fs:type=CacheRegistry,name=<name>. The bean is unregistered on destroy.
+     *
+     * @return true if the bean was registered, else false
+     */
+  public synchronized Boolean registerMBean(String name) {
+    if(_mbeanName != null) {
+      log.warn("Registry is already registered over JMX as "+_mbeanName+".");
+      return false;
+    }
+
+    try {
+      ObjectName objectName = new ObjectName("org.cache.fs:type=CacheRegistry,name="+ObjectName.quote(name));
+
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new RegistryMBean(), objectName);
+      _mbeanName = objectName;
+
+      return true;
+    } catch(JMException e) {
+      log.error("Could not register the registry over JMX as "+name+"; error at: "+e.getLocalizedMessage());
+      return false;
+    }
+  }
+
+  private synchronized void unregisterMBean() {
+    if(_mbeanName == null) {
+      return;
+    }
+
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(_mbeanName);
+    } catch(JMException e) {
+      log.error("Could not unregister JMX bean "+_mbeanName+"; error at: "+e.getLocalizedMessage());
+    }
+
+    _mbeanName = null;
+  }
+
+  /**
+     * Save the registered paths, the status each file was last seen with, and optionally the
+     * cached contents of each file, to a snapshot on the local filesystem such that a restarted
+     * process can restore them with restoreSnapshot
+     *
+     * Files are recorded in the order their contents were last read such that restoring them
+     * rebuilds the content cache in the same order. Only contents matching the file's current
+     * version are saved. Checksums held under Fingerprint.CHECKSUM are not saved; a restored file
+     * takes a new one on its first staleness check, so should it be rewritten with identical
+     * contents before then it is reloaded.
+     *
+     * @param withContents whether to save the contents held by getBytes as well
+     * @return true if the snapshot was written, else false
+     */
+  public Boolean saveSnapshot(String snapshotPath, boolean withContents) {
+    long start = System.nanoTime();
+
+    try {
+      if(StringUtils.isBlank(snapshotPath)) {
+        logBadPath("saveSnapshot");
+        return false;
+      }
+
+      RegistrySnapshot snapshot = new RegistrySnapshot();
+
+      for(Entry<String,CachedDirectory> kv : _directoryRegistry.entrySet()) {
+        snapshot.addDirectory(kv.getKey(), kv.getValue() instanceof DeepDirectory);
+      }
+
+      List<Entry<String,ContentCache.Content>> accessed = new ArrayList<Entry<String,ContentCache.Content>>();
+      Set<String> held = new HashSet<String>();
+
+      for(Entry<String,ContentCache.Content> kv : _contentCache.accessOrder()) {
+        CachedFile rf = _fileRegistry.get(kv.getKey());
+
+        if(rf != null && kv.getValue().version() == rf.version()) {
+          accessed.add(kv);
+          held.add(kv.getKey());
+        }
+      }
+
+      // Files without held contents were accessed least recently of all
+      for(Entry<String,CachedFile> kv : _fileRegistry.entrySet()) {
+        if(!held.contains(kv.getKey())) {
+          snapshot.addFile(kv.getKey(), kv.getValue().lastModified(), kv.getValue().length(), null);
+        }
+      }
+
+      for(Entry<String,ContentCache.Content> kv : accessed) {
+        CachedFile rf = _fileRegistry.get(kv.getKey());
+
+        if(rf != null) {
+          snapshot.addFile(kv.getKey(), rf.lastModified(), rf.length(), withContents ? kv.getValue().bytes() : null);
+        }
+      }
+
+      try {
+        snapshot.write(new File(snapshotPath));
+      } catch(IOException e) {
+        log.error("Could not write registry snapshot to "+snapshotPath+"; error at: "+e.getLocalizedMessage());
+        return false;
+      }
+
+      log.debug("Saved "+snapshot.directories().size()+" directories and "+snapshot.files().size()+" files to snapshot "+snapshotPath+".");
+
+      return true;
+    } finally {
+      _metrics.record("registry.saveSnapshot", start);
+    }
+  }
+
+  /**
+     * Restore the paths saved by saveSnapshot, revalidating them in bulk
+     *
+     * Files are grouped by their parent directory and each directory is listed once; every file
+     * still found in the listing is registered from the status returned rather than being statted
+     * and opened on its own, and is opened on its first read. Saved contents are restored only
+     * where the file's modification time and length are unchanged. Files no longer found are
+     * skipped, and paths already registered are left as they are.
+     *
+     * @return every path restored, else null if the snapshot could not be read
+     */
+  public List<String> restoreSnapshot(String snapshotPath) {
+    long start = System.nanoTime();
+
+    try {
+      if(StringUtils.isBlank(snapshotPath)) {
+        logBadPath("restoreSnapshot");
+        return null;
+      }
+
+      RegistrySnapshot snapshot = null;
+
+      try {
+        snapshot = RegistrySnapshot.read(new File(snapshotPath));
+      } catch(IOException e) {
+        log.error("Could not read registry snapshot from "+snapshotPath+"; error at: "+e.getLocalizedMessage());
+        return null;
+      }
+
+      Collection<String> restored = new ConcurrentLinkedQueue<String>();
+
+      for(RegistrySnapshot.DirectoryEntry dir : snapshot.directories()) {
+        if(registerDirectory(dir.path) != null) {
+          restored.add(dir.path);
+
+          if(dir.deep) {
+            setDeepStaleness(dir.path, true);
+          }
+        }
+      }
+
+      // Keyed by parent directory, or null for paths without one
+      Map<String,Siblings> byParent = new LinkedHashMap<String,Siblings>();
+
+      for(RegistrySnapshot.FileEntry file : snapshot.files()) {
+        String parent = parentOf(file.path);
+        Siblings siblings = byParent.get(parent);
+
+        if(siblings == null) {
+          byParent.put(parent, siblings = new Siblings(parent));
+        }
+
+        siblings.files.add(file);
+      }
+
+      final Map<String,CachedFile> validated = new ConcurrentHashMap<String,CachedFile>();
+      List<ForkJoinTask<?>> listings = new ArrayList<ForkJoinTask<?>>();
+      ForkJoinPool pool = treePool();
+
+      for(final Siblings siblings : byParent.values()) {
+        listings.add(pool.submit(new Runnable() {
+          public void run() {
+            siblings.listed = revalidateSiblings(siblings.parent, siblings.files, validated);
+          }
+        }));
+      }
+
+      // Joining publishes each task's listed flag
+      for(ForkJoinTask<?> listing : listings) {
+        listing.join();
+      }
+
+      // Restored in the saved order such that the content cache keeps its eviction order
+      for(RegistrySnapshot.FileEntry file : snapshot.files()) {
+        CachedFile rf = validated.get(file.path);
+
+        if(rf == null) {
+          if(!byParent.get(parentOf(file.path)).listed && registerFile(file.path) != null) {
+            restored.add(file.path);
+          }
+
+          continue;
+        }
+
+        CachedFile registered = assertRegister(file.path, _fileRegistry, rf);
+
+        if(registered == null) {
+          continue;
+        }
+
+        restored.add(file.path);
+
+        if(registered == rf && file.contents != null &&
+           rf.lastModified() == file.modTime && rf.length() == file.length) {
+          _contentCache.put(file.path, file.contents, rf.version());
+        }
+      }
+
+      log.debug("Restored "+restored.size()+" paths from snapshot "+snapshotPath+".");
+
+      return new ArrayList<String>(restored);
+    } finally {
+      _metrics.record("registry.restoreSnapshot", start);
+    }
+  }
+
+  /**
+   * The saved files sharing a parent directory, restored from a single listing of it
+   */
+  private static class Siblings {
+    final String parent;
+    final List<RegistrySnapshot.FileEntry> files = new ArrayList<RegistrySnapshot.FileEntry>();
+    /** Whether the parent was listed, else its files are registered one by one */
+    boolean listed = false;
+
+    Siblings(String parent) {
+      this.parent = parent;
+    }
+  }
+
+  /**
+     * List the parent directory once and build an unopened CachedFile for each saved file still
+     * found within it
+     *
+     * @return true if the parent was listed, else false if its files must be registered one by one
+     */
+  private boolean revalidateSiblings(String parent, List<RegistrySnapshot.FileEntry> files, Map<String,CachedFile> validated) {
+    Children children = parent == null ? null : listChildren(parent, _directoryRegistry.get(parent));
+
+    if(children == null) {
+      return false;
+    }
+
+    // Listed children may be keyed by a qualified form of the path so they are matched by name
+    Map<String,CachedFile> byName = new HashMap<String,CachedFile>();
+
+    for(Entry<String,CachedFile> kv : children.files.entrySet()) {
+      byName.put(nameOf(kv.getKey()), kv.getValue());
+    }
+
+    for(RegistrySnapshot.FileEntry file : files) {
+      CachedFile rf = byName.get(nameOf(file.path));
+
+      if(rf != null) {
+        validated.put(file.path, rf);
+      } else {
+        log.debug("Path "+file.path+" from snapshot no longer exists; not restoring.");
+      }
+    }
+
+    return true;
+  }
+
+  /**
+     * @return the parent of the path, else null if it has none
+     */
+  private static String parentOf(String path) {
+    int slash = path.lastIndexOf('/');
+
+    if(slash < 0 || slash == path.length() - 1) {
+      return null;
+    }
+
+    return slash == 0 ? "/" : path.substring(0, slash);
+  }
+
+  private static String nameOf(String path) {
+    return path.substring(path.lastIndexOf('/') + 1);
+  }
+
+  /**
+     * Record the latency of a call to the underlying filesystem made since the given
+     * System.nanoTime, under the name "fs.<call>"
+     */
+  protected void recordCall(String call, long start) {
+    _metrics.record("fs."+call, start);
+  }
+
+  /**
+     * Set whether callers finding a file stale while another caller is already reloading it are
+     * served what is held from before the change rather than waiting for the reload
+     *
+     * This applies to getBytes, getByteBuffer, getObject, and acquire, which leases the version
+     * held. It does not apply to getStream, whose cached stream is closed by the reload, so its
+     * callers always wait. Disabled by default.
+     */
+  public void setServeStale(boolean serveStale) {
+    _serveStale = serveStale;
+  }
+
+  /**
+     * Set the attributes compared to decide whether a registered file has changed. Defaults to
+     * Fingerprint.MODIFICATION_TIME, as before fingerprints could be chosen; applies to every
+     * registered file from its next staleness check.
+     */
+  public void setFingerprint(Fingerprint fingerprint) {
+    _fingerprint = fingerprint;
+  }
+
+  public Fingerprint getFingerprint() {
+    return _fingerprint;
+  }
+
+  /**
+     * Set the maximum number of bytes of file contents held in memory by getBytes and
+     * getByteBuffer
+     */
+  public void setContentCacheCapacity(long bytes) {
+    _contentCache.setCapacity(bytes);
+  }
+
+  /**
+     * Set whether the contents held by getBytes and getByteBuffer are compressed
+     *
+     * @see #setContentCompression(Predicate)
+     */
+  public void setContentCompression(boolean compress) {
+    setContentCompression(compress ? new Predicate<String>() {
+      public boolean test(String path) {
+        return true;
+      }
+    } : null);
+  }
+
+  /**
+     * Choose the paths whose contents are held compressed in memory, such that more contents fit
+     * within the capacity given to setContentCacheCapacity at the cost of decompressing them on
+     * every read
+     *
+     * Contents are deflated with the fastest setting as each is loaded, and kept uncompressed
+     * should that not save at least a tenth of their size. Contents already held are compressed
+     * once next reloaded. Use getContentStats to weigh each path's hit rate against its footprint.
+     *
+     * @param compress accepts the paths to compress, or null to compress none
+     */
+  public void setContentCompression(Predicate<String> compress) {
+    _contentCache.setCompression(compress);
+  }
+
+  /**
+     * @return the hit and miss counts of every path read through getBytes or getByteBuffer along
+     *         with the size, in memory and decompressed, of the contents held for it
+     */
+  public Map<String,ContentStats> getContentStats() {
+    return _contentCache.stats();
+  }
+
+  /**
+     * Set the maximum number of file descriptors held open by the registry
+     *
+     * Once the limit is exceeded the descriptors of the least recently used files are closed,
+     * down to a tenth below the limit. Those files remain registered and are reopened on their
+     * next access. Descriptors are never closed during a read, readFully, or getBytes call, but
+     * are closed beneath any caller still reading a stream returned by getStream; use acquire
+     * for streams which must stay open.
+     *
+     * @param maxOpenFiles the descriptor limit, or zero for no limit
+     */
+  public void setMaxOpenFiles(int maxOpenFiles) {
+    _openFiles.setMaxOpenFiles(maxOpenFiles);
+  }
+
+  /**
+     * Set the time after which a file descriptor left unaccessed is closed by a background
+     * thread. The file remains registered and is reopened on its next access.
+     *
+     * @param idleTimeout the idle time in milliseconds, or zero to never close idle descriptors
+     */
+  public void setIdleTimeout(long idleTimeout) {
+    _openFiles.setIdleTimeout(idleTimeout);
+  }
+
+  /**
+     * @return an unmodifiable, live view of every registered file keyed by its registered path
+     */
+  protected Map<String,CachedFile> registeredFiles() {
+    return Collections.unmodifiableMap(_fileRegistry);
+  }
+
+  /**
+     * @return an unmodifiable, live view of every registered directory keyed by its registered path
+     */
+  protected Map<String,CachedDirectory> registeredDirectories() {
+    return Collections.unmodifiableMap(_directoryRegistry);
+  }
+
+  /**
+     * @return the directory as built by registerCacheDirectory or listChildren, without any
+     *         wrapper the registry added around it, e.g. for setDeepStaleness
+     */
+  protected static CachedDirectory unwrap(CachedDirectory rd) {
+    return rd instanceof DeepDirectory ? ((DeepDirectory)rd).unwrap() : rd;
+  }
+
+  /**
+     * Called once an object built by registerCacheFile, registerCacheDirectory, or listChildren
+     * has been stored in the registry. Objects which lost a concurrent registration, or were
+     * never registered, are not passed. Does nothing by default.
+     *
+     * @param entry the stored CachedFile or CachedDirectory
+     */
+  protected void registered(String path, Object entry) {
+    return;
+  }
+
+  /**
+     * Called once a path has been removed from the registry such that implementations may release
+     * anything they hold for it. Does nothing by default.
+     */
+  protected void unregistered(String path) {
+    return;
+  }
+
+  /**
+     * Return the registered file for the path with its stale flag brought up to date
+     *
+     * The file is registered if it is not yet known. If it has been modified since it was last
+     * checked its descriptor is reopened and stale flag set before it is returned.
+     *
+     * @return the CachedFile for the path, else null if the path is not a file or could not be
+     *         registered
+     */
+  protected CachedFile getCachedFile(String path) {
+    CachedFile rf = lookupFile(path, "file");
+
+    if(rf != null && !isRefreshed(path) && !isReloading(path) && rf.isStale()) {
+      reload(path, rf);
+    }
+
+    return rf;
+  }
+
+  /**
+     * Set whether registered paths are revalidated on background threads
+     *
+     * Each path is polled on an adaptive interval between the bounds given to
+     * setRefreshIntervals. Changes found are applied to the registry, reopening files and
+     * rebuilding listings, and then reported to every RegistryListener. While enabled, request
+     * threads do not check registered paths for staleness themselves.
+     */
+  public synchronized void setBackgroundRefresh(boolean refresh) {
+    if(refresh && _refresher == null) {
+      _refresher = new RefreshScheduler(this, DEFAULT_REFRESH_THREADS, _minRefreshInterval, _maxRefreshInterval, _listeners);
+
+      for(String path : _fileRegistry.keySet()) {
+        _refresher.schedule(path);
+      }
+
+      for(String path : _directoryRegistry.keySet()) {
+        _refresher.schedule(path);
+      }
+    } else if(!refresh && _refresher != null) {
+      _refresher.shutdown();
+      _refresher = null;
     }
   }
 
   /**
-     * Register a new file with the Registry
+     * Set whether the files of registered directories are registered and loaded into memory on
+     * background threads, using DEFAULT_PREFETCH_PARALLELISM threads and prefetching every file
+     *
+     * @see #setPrefetch(int, Predicate)
      */
-  public String registerFile(String filePath) {
-    return registerFile(filePath, _mkpath);
+  public void setPrefetch(boolean prefetch) {
+    setPrefetch(prefetch ? DEFAULT_PREFETCH_PARALLELISM : 0, null);
   }
 
   /**
-     * Register a new file with the Registry and create the path if set
+     * Prefetch the files of registered directories on background threads
+     *
+     * When a directory is registered its files are registered from a single listing and their
+     * contents loaded as getBytes would, such that the first read of each is served from memory.
+     * Files added later are prefetched once the directory's listing is rebuilt. Prefetched
+     * contents share the budget given to setContentCacheCapacity.
+     *
+     * @param parallelism the number of files loaded at once, or zero to disable prefetching
+     * @param filter accepts the paths of the files to prefetch, or null to prefetch every file
      */
-  public String registerFile(String path, Boolean mkfile) {
-    if(StringUtils.isBlank(path)) {
-      logBadPath("registerFile");
-      return null;
+  public synchronized void setPrefetch(int parallelism, Predicate<String> filter) {
+    if(_prefetcher != null) {
+      _prefetcher.shutdown();
+      _prefetcher = null;
     }
 
-    if(isFile(path) && _fileRegistry.containsKey(path)) {
-      return path;
-    } else if(assertRegister(path, _fileRegistry, registerCacheFile(path, mkfile)) != null) {
-      _fileRegistry.get(path).open();
-      return path;
+    if(parallelism > 0) {
+      _prefetcher = new Prefetcher(this, parallelism, filter);
     }
-
-    return null;
   }
 
   /**
-     * Register a new directory with the Registry
+     * Register the files of a registered directory from a single listing on behalf of the
+     * prefetcher
+     *
+     * @return the files registered under the directory and accepted by the filter
      */
-  public String registerDirectory(String dirPath) {
-    return registerDirectory(dirPath, _mkpath);
-  }
+  List<String> registerChildFiles(String path, Predicate<String> filter) {
+    List<String> files = new ArrayList<String>();
+    CachedDirectory rd = _directoryRegistry.get(path);
+    Children children = rd == null ? null : listChildren(path, rd);
 
-  /**
-     * Register a new directory with the Registry and create the path if set
-     */
-  public String registerDirectory(String path, Boolean mkdir) {
-    if(StringUtils.isBlank(path)) {
-      logBadPath("registerDirectory");
-      return null;
+    if(children == null) {
+      return files;
     }
 
-    if(isDirectory(path) && _directoryRegistry.containsKey(path)) {
-      return path;
-    } else {
-      return assertRegister(path, _directoryRegistry, registerCacheDirectory(path, mkdir));
+    for(Entry<String,CachedFile> kv : children.files.entrySet()) {
+      if(filter != null && !filter.test(kv.getKey())) {
+        continue;
+      }
+
+      // Files already registered keep their object, and so their watch, and are only loaded
+      if(_fileRegistry.containsKey(kv.getKey()) || assertRegister(kv.getKey(), _fileRegistry, kv.getValue()) != null) {
+        files.add(kv.getKey());
+      }
     }
+
+    return files;
   }
 
   /**
-     * Assert all assignments into the registry with the given path are complete
+     * Register the file and load its contents on behalf of the prefetcher
      */
-  private <T> String assertRegister(String path, Map<String,T> registry, T registeredPath) {
-    if(registry == null) {
-      log.error("Found uninitialized registry"+regErrStr(path));
-      return null;
+  void prefetchFile(String path) {
+    if(!isFile(path) || registerFile(path) == null) {
+      return;
     }
 
-    if(registeredPath == null) {
-      log.warn("Could not create a register object for path provided"+regErrStr(path));
-      return null;
+    if(getBytes(path) != null) {
+      _metrics.increment("prefetch");
     }
+  }
 
-    registry.put(path, registeredPath);
-
-    log.debug("Successfully registered path "+path+".");
-
-    return path;
+  /**
+     * Set the executor on which the asynchronous methods run, or null to use the default pool of
+     * daemon threads. A supplied executor is never shut down by the registry.
+     */
+  public void setExecutor(Executor executor) {
+    _async.setExecutor(executor);
   }
 
   /**
-     * @return true or false given whether the path is a file or directory
+     * Set whether the asynchronous methods run each call on its own virtual thread. Runtimes
+     * without virtual threads fall back to the default pool.
+     *
+     * @return true if virtual threads are in use
      */
-  public Boolean exists(String path) {
-    return (isFile(path) || isDirectory(path));
+  public Boolean setVirtualThreads(boolean virtual) {
+    return _async.setVirtualThreads(virtual);
   }
 
   /**
-     * @return true if path was removed, false otherwise
+     * Asynchronous registerFile; the future completes with the registered path, else null
      */
-  public Boolean delete(String path) {
-    return deletePath(path);
+  public CompletableFuture<String> registerFileAsync(final String path) {
+    return async(new Supplier<String>() {
+      public String get() {
+        return registerFile(path);
+      }
+    });
   }
 
   /**
-     * Return the list of files for the given path provided
-     *
-     * @return If a directory is given, then all objects under the directory will be returned
-     *         within the array. If a file is given, then the path provided is returned as an
-     *         array of a single element.
+     * Asynchronous registerDirectory; the future completes with the registered path, else null
      */
-  public List<String> list(String path) {
-    if(StringUtils.isBlank(path)) {
-      logBadPath("listFiles");
-      return new ArrayList<String>();
-    }
+  public CompletableFuture<String> registerDirectoryAsync(final String path) {
+    return async(new Supplier<String>() {
+      public String get() {
+        return registerDirectory(path);
+      }
+    });
+  }
 
-    if(isFile(path)) {
-      return Arrays.asList(new String[]{path});
-    } else if(isDirectory(path)) {
-      CachedDirectory rd = null;
+  public CompletableFuture<Boolean> existsAsync(final String path) {
+    return async(new Supplier<Boolean>() {
+      public Boolean get() {
+        return exists(path);
+      }
+    });
+  }
 
-      if(_directoryRegistry.containsKey(path)) {
-        rd = _directoryRegistry.get(path);
+  public CompletableFuture<Boolean> isStaleAsync(final String path) {
+    return async(new Supplier<Boolean>() {
+      public Boolean get() {
+        return isStale(path);
+      }
+    });
+  }
 
-        if(rd.isStale()) {
-          rd.setStaleFlag();
-          return rd.list();
-        } else {
-          return rd.list();
-        }
-      } else {
-        logUnregistered("directory", path);
+  public CompletableFuture<List<String>> listAsync(final String path) {
+    return async(new Supplier<List<String>>() {
+      public List<String> get() {
+        return list(path);
+      }
+    });
+  }
 
-        if(assertRegister(path, _directoryRegistry, registerCacheDirectory(path, _mkpath)) != null) {
-          return _directoryRegistry.get(path).list();
-        } else {
-          logRegistrationFailed("directory", path);
-          return new ArrayList<String>();
-        }
+  public CompletableFuture<InputStream> getStreamAsync(final String path) {
+    return async(new Supplier<InputStream>() {
+      public InputStream get() {
+        return getStream(path);
       }
-    } else {
-      logBadType(path);
+    });
+  }
+
+  public CompletableFuture<byte[]> getBytesAsync(final String path) {
+    return async(new Supplier<byte[]>() {
+      public byte[] get() {
+        return getBytes(path);
+      }
+    });
+  }
+
+  public CompletableFuture<StreamLease> acquireAsync(final String path) {
+    return async(new Supplier<StreamLease>() {
+      public StreamLease get() {
+        return acquire(path);
+      }
+    });
+  }
+
+  public <T> CompletableFuture<T> getObjectAsync(final String path, final Function<InputStream,T> loader) {
+    return async(new Supplier<T>() {
+      public T get() {
+        return getObject(path, loader);
+      }
+    });
+  }
+
+  public <T> CompletableFuture<T> getObjectAsync(final String path, final Object key, final Function<InputStream,T> loader) {
+    return async(new Supplier<T>() {
+      public T get() {
+        return getObject(path, key, loader);
+      }
+    });
+  }
+
+  /**
+     * Set the bounds, in milliseconds, on how often a path is revalidated in the background. A
+     * path which changes is next checked after the minimum interval while a quiet path backs off
+     * towards the maximum.
+     */
+  public void setRefreshIntervals(long minInterval, long maxInterval) {
+    _minRefreshInterval = minInterval;
+    _maxRefreshInterval = Math.max(minInterval, maxInterval);
+
+    RefreshScheduler refresher = _refresher;
+
+    if(refresher != null) {
+      refresher.setIntervals(_minRefreshInterval, _maxRefreshInterval);
     }
+  }
+
+  /**
+     * Subscribe a listener to changes found by the background refresh
+     */
+  public void addListener(RegistryListener listener) {
+    _listeners.addIfAbsent(listener);
+  }
 
-    return new ArrayList<String>();
+  public void removeListener(RegistryListener listener) {
+    _listeners.remove(listener);
   }
 
   /**
-     * Move a file into the new path
-     *
-     * @param currPath a file path, cannot be a directory
-     * @param newPath the file or directory with which to be renamed or placed into
+     * Run the call on the async executor. Like their blocking counterparts the futures complete
+     * with null rather than exceptionally on failure.
+     */
+  private <T> CompletableFuture<T> async(Supplier<T> call) {
+    return _async.submit(call);
+  }
+
+  /**
+     * Check a registered path for changes on behalf of the background refresh, applying and
+     * reporting any change found
      *
-     * @return the newPath if successful, else null for any errors
+     * @return true if the path changed, false if not, or null if the path is no longer registered
      */
-  public String move(String currPath, String newPath) {
-    String actNewPath = null;
+  Boolean revalidate(String path) {
+    RefreshScheduler refresher = _refresher;
 
-    if(StringUtils.isBlank(currPath) ||
-       StringUtils.isBlank(newPath)) {
-      logBadPath("move");
+    if(refresher == null) {
       return null;
     }
 
-    if(isFile(currPath)) {
-      if(_fileRegistry.containsKey(currPath)) {
-        unregister(currPath);
+    CachedFile rf = _fileRegistry.get(path);
+
+    if(rf != null) {
+      if(!rf.isStale()) {
+        return false;
       }
 
-      actNewPath = moveFile(currPath, newPath, _mkpath);
+      refresher.setPending(path, true);
 
-      if(actNewPath != null) {
-        if(assertRegister(actNewPath, _fileRegistry, registerCacheFile(actNewPath, _mkpath)) != null) {
-          _fileRegistry.get(actNewPath).open();
-          return actNewPath;
-        } else {
-          logRegistrationFailed("file", newPath);
-          return null;
-        }
-      } else {
-        logBadMove("file",currPath,newPath);
-        return null;
+      if(!isFile(path)) {
+        unregisterQuietly(path);
+        refresher.fireDeleted(path);
+        return true;
       }
-    } else if(isDirectory(currPath)) {
-      if(_directoryRegistry.containsKey(currPath)) {
-        unregister(currPath);
+
+      reopenIfStale(rf);
+      refresher.setPending(path, false);
+      refresher.fireModified(path);
+
+      return true;
+    }
+
+    CachedDirectory rd = _directoryRegistry.get(path);
+
+    if(rd != null) {
+      if(!rd.isStale()) {
+        // Ensure a listing is held to compare against once the directory does change
+        rd.list();
+        return false;
       }
 
-      actNewPath = moveDirectory(currPath, newPath, _mkpath);
+      refresher.setPending(path, true);
 
-      if(actNewPath != null) {
-        if(assertRegister(actNewPath, _directoryRegistry, registerCacheDirectory(actNewPath, _mkpath)) != null) {
-          return actNewPath;
-        } else {
-          logRegistrationFailed("directory", newPath);
-          return null;
+      if(!isDirectory(path)) {
+        unregisterQuietly(path);
+        refresher.fireDeleted(path);
+        return true;
+      }
+
+      List<String> before = rd.list();
+
+      refreshIfStale(rd);
+
+      List<String> after = rd.list();
+
+      refresher.setPending(path, false);
+      refresher.fireModified(path);
+
+      if(!after.isEmpty()) {
+        Set<String> known = new HashSet<String>(before);
+
+        for(String child : after) {
+          if(!known.contains(child)) {
+            refresher.fireCreated(path, child);
+          }
         }
-      } else {
-        logBadMove("directory",currPath,newPath);
-        return null;
       }
-    } else {
-      logBadType(currPath);
+
+      return true;
     }
 
     return null;
   }
 
   /**
-     * Check if any changes have occurred to the path specified.
+     * @return true if the path is revalidated by the background refresh rather than on request
+     */
+  private boolean isRefreshed(String path) {
+    return isRefreshed(_refresher, path);
+  }
+
+  private static boolean isRefreshed(RefreshScheduler refresher, String path) {
+    return refresher != null && refresher.isScheduled(path);
+  }
+
+  /**
+     * Find the registered file for the path, registering and opening it if it is not yet known
      *
-     * This is useful for applications leveraging a CacheRegistry and using it to load or
-     * serialize data into Java objects.
+     * @param returnType description of what the caller will return, used for logging
+     * @return the CachedFile for the path, else null if the path is not a file or could not be
+     *         registered
      */
-  public Boolean isStale(String path) {
-    if(StringUtils.isBlank(path)) {
-      logBadPath("isStale");
+  private CachedFile lookupFile(String path, String returnType) {
+    if(!isFile(path)) {
+      log.error("Could not determine file as path: "+path+"; cannot return "+returnType+".");
       return null;
     }
 
-    if(isFile(path)) {
-      if(_fileRegistry.containsKey(path)) {
-        return _fileRegistry.get(path).isStale();
-      } else {
-        logUnregistered("file", path);
+    CachedFile rf = _fileRegistry.get(path);
 
-        if(assertRegister(path, _fileRegistry, registerCacheFile(path, _mkpath)) != null) {
-          return _fileRegistry.get(path).isStale();
-        } else {
-          logRegistrationFailed("file", path);
-          return null;
-        }
-      }
-    } else if(isDirectory(path)) {
-      if(_directoryRegistry.containsKey(path)) {
-        return _directoryRegistry.get(path).isStale();
-      } else {
-        logUnregistered("directory", path);
+    if(rf != null) {
+      _metrics.increment("lookup.hit");
+    } else {
+      _metrics.increment("lookup.miss");
+      logUnregistered("file", path);
 
-        if(assertRegister(path, _directoryRegistry, registerCacheDirectory(path, _mkpath)) != null) {
-          return _directoryRegistry.get(path).isStale();
-        } else {
-          logRegistrationFailed("directory", path);
-          return null;
-        }
+      if((rf = assertRegisterFile(path, _mkpath)) == null) {
+        logRegistrationFailed("file", path);
       }
-    } else {
-      logBadType(path);
     }
 
-    return null;
+    return rf;
   }
 
   /**
-     * Return the native file stream object for the file at the given path
+     * Read the entire file through a stream independent of the cached stream
      *
-     * This will return a cached InputStream if one was already opened and is, therefore,
-     * performance-safe for multiple calls to this method. If the cache is stale and the file
-     * has since been modified the system will close the old file descriptor, set the stale flag
-     * to the current value, and return the newly opened file.
-     *
-     * @return A new instance of the InputStream or the previously cached instance if one was
-     *         already opened.
+     * @return the bytes of the file, else null if an error occurred
      */
-  public InputStream getStream(String path) {
-    if(StringUtils.isBlank(path)) {
-      logBadPath("getStream");
+  private byte[] readContents(String path, CachedFile rf) {
+    if(rf.length() > Integer.MAX_VALUE) {
+      log.error("Cannot hold file "+path+" of "+rf.length()+" bytes in memory; contents exceed the maximum array size.");
       return null;
     }
 
-    if(isFile(path)) {
-      CachedFile rf = null;
+    InputStream in = rf.newInputStream();
 
-      if(_fileRegistry.containsKey(path)) {
-        rf = _fileRegistry.get(path);
-
-        if(rf.isStale()) {
-          rf.close();
-          rf.setStaleFlag();
-          return rf.open();
-        } else {
-          return rf.cachedInputStream();
-        }
-      } else {
-        logUnregistered("file", path);
-
-        if(assertRegister(path, _fileRegistry, registerCacheFile(path, _mkpath)) != null) {
-          return _fileRegistry.get(path).open();
-        } else {
-          logRegistrationFailed("file", path);
-          return null;
-        }
-      }
-    } else {
-      log.error("Could not determine file as path: "+path+"; cannot return InputStream.");
+    if(in == null) {
+      return null;
     }
 
-    return null;
+    try {
+      return IOUtils.toByteArray(in);
+    } catch(IOException e) {
+      log.error("Could not read contents of file "+path+"; error at: "+e.getLocalizedMessage());
+      return null;
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
   }
 
   /**
@@ -339,12 +1956,7 @@ public abstract class CacheRegistry {
       return;
     }
 
-    if(_fileRegistry.containsKey(path)) {
-      _fileRegistry.get(path).close();
-      _fileRegistry.remove(path);
-    } else if(_directoryRegistry.containsKey(path)) {
-      _directoryRegistry.remove(path);
-    } else {
+    if(!unregisterQuietly(path)) {
       logBadType(path);
     }
 
@@ -352,21 +1964,136 @@ public abstract class CacheRegistry {
   }
 
   /**
-     * Closes all files associated with the CacheRegistry instance and clears all registries
+     * Remove the path from the monitored list, closing it if a file, without logging if the path
+     * was never registered
+     *
+     * @return true if the path was registered, false otherwise
+     */
+  private boolean unregisterQuietly(String path) {
+    CachedFile rf = _fileRegistry.remove(path);
+
+    _contentCache.remove(path);
+    _objectCache.remove(path);
+    _leases.retire(path);
+    _openFiles.remove(path);
+
+    RefreshScheduler refresher = _refresher;
+
+    if(refresher != null) {
+      refresher.cancel(path);
+    }
+
+    if(rf != null) {
+      rf.close();
+      unregistered(path);
+      _metrics.increment("unregister");
+      return true;
+    }
+
+    if(_directoryRegistry.remove(path) != null) {
+      unregistered(path);
+      _metrics.increment("unregister");
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+     * Closes all files associated with the CacheRegistry instance and clears all registries;
+     * asynchronous calls made afterwards complete exceptionally with a
+     * RejectedExecutionException
      */
   public void destroy() {
-    for(Entry<String,CachedFile> kv : _fileRegistry.entrySet()) {
-      kv.getValue().close();
+    // Stopped first such that no prefetch registers paths while the registries are cleared
+    setPrefetch(false);
+
+    for(String path : _fileRegistry.keySet()) {
+      CachedFile rf = _fileRegistry.remove(path);
+
+      if(rf != null) {
+        rf.close();
+      }
     }
 
-    _fileRegistry.clear();
     _directoryRegistry.clear();
+    _contentCache.clear();
+    _objectCache.clear();
+    _leases.clear();
+    _openFiles.shutdown();
+    _async.shutdown();
+
+    synchronized(this) {
+      if(_treePool != null) {
+        _treePool.shutdown();
+        _treePool = null;
+      }
+    }
+    setBackgroundRefresh(false);
+    unregisterMBean();
 
     close();
 
     return;
   }
 
+  /**
+   * Exposes the registry's sizes and metrics over JMX
+   */
+  private class RegistryMBean implements CacheRegistryMXBean {
+    public int getRegisteredFiles() {
+      return _fileRegistry.size();
+    }
+
+    public int getRegisteredDirectories() {
+      return _directoryRegistry.size();
+    }
+
+    public int getTrackedOpenFiles() {
+      return _openFiles.size();
+    }
+
+    public long getCachedBytes() {
+      return _contentCache.weight();
+    }
+
+    public long getContentCacheCapacity() {
+      return _contentCache.getCapacity();
+    }
+
+    public long getCachedContentLength() {
+      return _contentCache.length();
+    }
+
+    public Map<String,ContentStats> getContentStats() {
+      return _contentCache.stats();
+    }
+
+    public Map<String,Long> getCounters() {
+      return _metrics.counters();
+    }
+
+    public Map<String,Long> getCallCounts() {
+      return _metrics.callCounts();
+    }
+
+    public Map<String,Long> getMeanLatencyMicros() {
+      return _metrics.meanMicros();
+    }
+
+    public Map<String,Long> getP99LatencyMicros() {
+      return _metrics.percentileMicros(99);
+    }
+
+    public Map<String,Long> getMaxLatencyMicros() {
+      return _metrics.maxMicros();
+    }
+
+    public void resetMetrics() {
+      _metrics.reset();
+    }
+  }
+
   /**
      * Generate a common registry error string given the path to concatenate onto all log messages
      */
@@ -395,6 +2122,13 @@ public abstract class CacheRegistry {
     log.warn("Cannot move "+regType+" from "+currPath+" to "+newPath+".");
   }
 
+  /**
+     * Generate a common log when a positioned read fails
+     */
+  private void logBadRead(String path, long position, IOException e) {
+    log.error("Could not read file "+path+" at position "+position+"; error at: "+e.getLocalizedMessage());
+  }
+
   /**
      * Generate a common unregistered lookup error string given the path and registry type for
      * all log messages
@@ -467,4 +2201,31 @@ public abstract class CacheRegistry {
      * @return A CachedDirectory to register the directory with the system, else null if an error occurred.
      */
   protected abstract CachedDirectory registerCacheDirectory(String path, Boolean mkdir);
+
+  /**
+     * List the direct children of a registered directory with a single listing, building each
+     * child's registry object from the status the listing returned. The directory given may keep
+     * the listing as its own.
+     *
+     * @return the children keyed by the paths list would return, else null if the directory could
+     *         not be listed
+     */
+  protected abstract Children listChildren(String path, CachedDirectory rd);
+
+  /**
+     * List the statuses of the direct children of a directory with a single listing
+     *
+     * @return the status of each child, else null if the directory could not be listed
+     */
+  protected abstract List<PathStatus> statChildren(String path);
+
+  /**
+   * The direct children of a directory as built by listChildren
+   */
+  protected static class Children {
+    public final Map<String,CachedFile> files = new LinkedHashMap<String,CachedFile>();
+    public final Map<String,CachedDirectory> directories = new LinkedHashMap<String,CachedDirectory>();
+
+    public Children() { }
+  }
 }
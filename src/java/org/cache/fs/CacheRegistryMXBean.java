@@ -0,0 +1,55 @@
+package org.cache.fs;
+
+import java.util.Map;
+
+/**
+ * The management interface through which a CacheRegistry is exposed over JMX.
+ */
+public interface CacheRegistryMXBean {
+  int getRegisteredFiles();
+
+  int getRegisteredDirectories();
+
+  /**
+     * @return the number of registered files holding an open descriptor
+     */
+  int getTrackedOpenFiles();
+
+  /**
+     * @return the number of bytes of memory held by cached contents, compressed or not
+     */
+  long getCachedBytes();
+
+  long getContentCacheCapacity();
+
+  /**
+     * @return the total size of the cached contents once decompressed
+     */
+  long getCachedContentLength();
+
+  /**
+     * @return the hit rate and footprint of every path read through getBytes by path
+     */
+  Map<String,ContentStats> getContentStats();
+
+  /**
+     * @return the count of every event, e.g. "lookup.hit" or "reload", by name
+     */
+  Map<String,Long> getCounters();
+
+  /**
+     * @return the number of calls recorded for every timed operation by name
+     */
+  Map<String,Long> getCallCounts();
+
+  Map<String,Long> getMeanLatencyMicros();
+
+  /**
+     * @return the 99th percentile latency of every timed operation, accurate to a power of two
+     */
+  Map<String,Long> getP99LatencyMicros();
+
+  Map<String,Long> getMaxLatencyMicros();
+
+  void resetMetrics();
+}
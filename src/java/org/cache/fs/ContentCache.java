@@ -0,0 +1,352 @@
+package org.cache.fs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Holds the full contents of registered files in memory bounded by a total byte budget.
+ *
+ * Lookups never lock. When an insert pushes the total weight over the budget the least recently
+ * accessed entries are evicted until the cache fits again.
+ *
+ * Contents of chosen paths may be held compressed, weighing only their compressed size, and are
+ * decompressed on every read. Hits and misses are counted per path such that the hit rate and
+ * footprint of each path can be weighed against the cost of compressing it.
+ */
+class ContentCache {
+  static Logger log = Logger.getLogger(ContentCache.class);
+
+  /** Compressed contents are only kept if at most this fraction of their original size */
+  private static final double MAX_COMPRESSED_RATIO = 0.9;
+
+  private final ConcurrentMap<String,Content> _contents;
+  private final ConcurrentMap<String,Counts> _counts;
+  private final AtomicLong _weight;
+  private volatile long _capacity;
+  private volatile Predicate<String> _compress = null;
+
+  public ContentCache(long capacity) {
+    _contents = new ConcurrentHashMap<String,Content>();
+    _counts = new ConcurrentHashMap<String,Counts>();
+    _weight = new AtomicLong();
+    _capacity = capacity;
+  }
+
+  /**
+     * @return the cached content for the path, else null if nothing is cached
+     */
+  public Content get(String path) {
+    Content c = _contents.get(path);
+
+    if(c != null) {
+      c.touch();
+    }
+
+    return c;
+  }
+
+  /**
+     * Cache the bytes for the path as read at the given version, compressed if the path is chosen
+     * for compression, and evict as needed to stay within the capacity. Content larger than the
+     * whole capacity is never cached.
+     */
+  public void put(String path, byte[] bytes, long version) {
+    Predicate<String> compress = _compress;
+
+    put(path, compress != null && compress.test(path) ? Content.compressed(bytes, version) : new Content(bytes, version));
+  }
+
+  private void put(String path, Content c) {
+    if(c.weight() > _capacity) {
+      log.debug("Content for path "+path+" of "+c.weight()+" bytes exceeds the cache capacity; not caching.");
+      discard(path);
+      return;
+    }
+
+    Content prev = _contents.put(path, c);
+
+    _weight.addAndGet(c.weight() - (prev == null ? 0 : prev.weight()));
+
+    evict();
+  }
+
+  /**
+     * Remove any content cached for the path and forget its hit and miss counts
+     */
+  public void remove(String path) {
+    discard(path);
+    _counts.remove(path);
+  }
+
+  public void clear() {
+    for(String path : _contents.keySet()) {
+      discard(path);
+    }
+
+    _counts.clear();
+  }
+
+  public void recordHit(String path) {
+    counts(path).hits.increment();
+  }
+
+  public void recordMiss(String path) {
+    counts(path).misses.increment();
+  }
+
+  /**
+     * Choose the paths whose contents are held compressed from their next load, or null to hold
+     * every path uncompressed
+     */
+  public void setCompression(Predicate<String> compress) {
+    _compress = compress;
+  }
+
+  /**
+     * @return the hit and miss counts of every path read along with the size of any content held
+     */
+  public Map<String,ContentStats> stats() {
+    Map<String,ContentStats> stats = new HashMap<String,ContentStats>();
+
+    for(Entry<String,Counts> kv : _counts.entrySet()) {
+      Content c = _contents.get(kv.getKey());
+
+      stats.put(kv.getKey(), new ContentStats(kv.getValue().hits.sum(), kv.getValue().misses.sum(),
+                                              c == null ? 0 : c.length(), c == null ? 0 : c.weight(),
+                                              c != null && c.isCompressed()));
+    }
+
+    return stats;
+  }
+
+  public void setCapacity(long capacity) {
+    _capacity = capacity;
+    evict();
+  }
+
+  public long getCapacity() {
+    return _capacity;
+  }
+
+  /**
+     * @return the total number of bytes currently held
+     */
+  public long weight() {
+    return _weight.get();
+  }
+
+  /**
+     * @return the total size of the contents held once decompressed
+     */
+  public long length() {
+    long length = 0;
+
+    for(Content c : _contents.values()) {
+      length += c.length();
+    }
+
+    return length;
+  }
+
+  public int size() {
+    return _contents.size();
+  }
+
+  /**
+     * @return every cached entry ordered by its last access, least recent first, without counting
+     *         as an access
+     */
+  public List<Entry<String,Content>> accessOrder() {
+    List<Entry<String,Content>> entries = new ArrayList<Entry<String,Content>>(_contents.entrySet());
+
+    Collections.sort(entries, new Comparator<Entry<String,Content>>() {
+      public int compare(Entry<String,Content> a, Entry<String,Content> b) {
+        return Long.compare(a.getValue().lastAccess(), b.getValue().lastAccess());
+      }
+    });
+
+    return entries;
+  }
+
+  private void discard(String path) {
+    Content prev = _contents.remove(path);
+
+    if(prev != null) {
+      _weight.addAndGet(-prev.weight());
+    }
+  }
+
+  private Counts counts(String path) {
+    Counts counts = _counts.get(path);
+
+    if(counts == null) {
+      Counts prev = _counts.putIfAbsent(path, counts = new Counts());
+
+      if(prev != null) {
+        counts = prev;
+      }
+    }
+
+    return counts;
+  }
+
+  /**
+     * Evict the least recently accessed entries until the total weight fits within the capacity
+     */
+  private synchronized void evict() {
+    if(_weight.get() <= _capacity) {
+      return;
+    }
+
+    for(Entry<String,Content> kv : accessOrder()) {
+      if(_weight.get() <= _capacity) {
+        break;
+      }
+
+      if(_contents.remove(kv.getKey(), kv.getValue())) {
+        _weight.addAndGet(-kv.getValue().weight());
+        log.debug("Evicted cached content for path "+kv.getKey()+".");
+      }
+    }
+  }
+
+  private static class Counts {
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+  }
+
+  /**
+   * The bytes of a file, held as read or compressed, along with the version of the file they were
+   * read at
+   */
+  public static class Content {
+    private final byte[] _data;
+    private final int _length;
+    private final boolean _compressed;
+    private final long _version;
+    private volatile long _lastAccess;
+
+    public Content(byte[] bytes, long version) {
+      this(bytes, bytes.length, false, version);
+    }
+
+    private Content(byte[] data, int length, boolean compressed, long version) {
+      _data = data;
+      _length = length;
+      _compressed = compressed;
+      _version = version;
+      _lastAccess = System.nanoTime();
+    }
+
+    /**
+       * Deflate the bytes with the fastest setting, keeping them as read should compression not
+       * save at least a tenth of their size
+       */
+    static Content compressed(byte[] bytes, long version) {
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      byte[] buffer = new byte[(int)(bytes.length * MAX_COMPRESSED_RATIO)];
+      int size = 0;
+
+      try {
+        deflater.setInput(bytes);
+        deflater.finish();
+
+        while(!deflater.finished() && size < buffer.length) {
+          size += deflater.deflate(buffer, size, buffer.length - size);
+        }
+
+        if(!deflater.finished()) {
+          return new Content(bytes, version);
+        }
+      } finally {
+        deflater.end();
+      }
+
+      byte[] data = new byte[size];
+
+      System.arraycopy(buffer, 0, data, 0, size);
+
+      return new Content(data, bytes.length, true, version);
+    }
+
+    /**
+       * @return the bytes as read, shared between callers if held uncompressed or else newly
+       *         decompressed on every call
+       */
+    public byte[] bytes() {
+      if(!_compressed) {
+        return _data;
+      }
+
+      Inflater inflater = new Inflater();
+      byte[] bytes = new byte[_length];
+
+      try {
+        inflater.setInput(_data);
+
+        int size = 0;
+
+        while(size < _length && !inflater.finished()) {
+          int n = inflater.inflate(bytes, size, _length - size);
+
+          if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            throw new DataFormatException("Compressed content ended after "+size+" of "+_length+" bytes");
+          }
+
+          size += n;
+        }
+      } catch(DataFormatException e) {
+        throw new IllegalStateException("Compressed content is corrupt", e);
+      } finally {
+        inflater.end();
+      }
+
+      return bytes;
+    }
+
+    public long version() {
+      return _version;
+    }
+
+    /**
+       * @return the number of bytes held, compressed or not
+       */
+    public long weight() {
+      return _data.length;
+    }
+
+    /**
+       * @return the number of bytes once decompressed
+       */
+    public long length() {
+      return _length;
+    }
+
+    public boolean isCompressed() {
+      return _compressed;
+    }
+
+    long lastAccess() {
+      return _lastAccess;
+    }
+
+    void touch() {
+      _lastAccess = System.nanoTime();
+    }
+  }
+}
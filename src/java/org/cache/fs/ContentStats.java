@@ -0,0 +1,62 @@
+package org.cache.fs;
+
+/**
+ * The hit and miss counts of a path read through getBytes along with the footprint of the content
+ * held for it, such that the benefit of caching, and of compressing, each path can be judged.
+ */
+public class ContentStats {
+  private final long _hits;
+  private final long _misses;
+  private final long _length;
+  private final long _footprint;
+  private final boolean _compressed;
+
+  public ContentStats(long hits, long misses, long length, long footprint, boolean compressed) {
+    _hits = hits;
+    _misses = misses;
+    _length = length;
+    _footprint = footprint;
+    _compressed = compressed;
+  }
+
+  public long getHits() {
+    return _hits;
+  }
+
+  public long getMisses() {
+    return _misses;
+  }
+
+  /**
+     * @return the fraction of reads served from memory, or zero if the path was never read
+     */
+  public double getHitRate() {
+    long reads = _hits + _misses;
+    return reads == 0 ? 0 : (double)_hits / reads;
+  }
+
+  /**
+     * @return the size of the content held once decompressed, or zero if none is held
+     */
+  public long getLength() {
+    return _length;
+  }
+
+  /**
+     * @return the number of bytes of memory the content held occupies, or zero if none is held
+     */
+  public long getFootprint() {
+    return _footprint;
+  }
+
+  public boolean isCompressed() {
+    return _compressed;
+  }
+
+  /**
+     * @return the footprint as a fraction of the decompressed length, or one if none is held
+     */
+  public double getCompressionRatio() {
+    return _length == 0 ? 1 : (double)_footprint / _length;
+  }
+}
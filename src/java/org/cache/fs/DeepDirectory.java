@@ -0,0 +1,43 @@
+package org.cache.fs;
+
+import java.util.List;
+
+import org.cache.fs.sys.CachedDirectory;
+
+/**
+ * A registered directory which is also found stale when anything below it changes, not only when
+ * its direct children are added or removed.
+ */
+class DeepDirectory implements CachedDirectory {
+  private final CachedDirectory _directory;
+  private final SubtreeFingerprint _fingerprint;
+
+  public DeepDirectory(CachedDirectory directory, SubtreeFingerprint fingerprint) {
+    _directory = directory;
+    _fingerprint = fingerprint;
+    _fingerprint.accept();
+  }
+
+  public boolean isStale() {
+    return _directory.isStale() || _fingerprint.isChanged();
+  }
+
+  public List<String> list() {
+    return _directory.list();
+  }
+
+  public void setStaleFlag() {
+    if(_directory.isStale()) {
+      _directory.setStaleFlag();
+    }
+
+    _fingerprint.accept();
+  }
+
+  /**
+     * @return the directory as registered before deep staleness was enabled
+     */
+  public CachedDirectory unwrap() {
+    return _directory;
+  }
+}
@@ -0,0 +1,22 @@
+package org.cache.fs;
+
+/**
+ * The attributes of a registered file compared to decide whether it has changed.
+ */
+public enum Fingerprint {
+  /** The modification time alone */
+  MODIFICATION_TIME,
+
+  /**
+   * The modification time, the length, and the file id where the filesystem exposes one, such
+   * that a file still being appended to or replaced within the same millisecond is found changed
+   */
+  STATUS,
+
+  /**
+   * The status as above, with every change it reports confirmed against a checksum of the
+   * contents such that a file rewritten with identical contents is not reloaded. Filesystems
+   * which provide no checksum fall back to the status alone.
+   */
+  CHECKSUM
+}
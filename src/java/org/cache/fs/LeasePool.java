@@ -0,0 +1,159 @@
+package org.cache.fs;
+
+import java.io.IOException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import org.cache.fs.sys.CachedFile;
+import org.cache.fs.sys.FileHandle;
+
+/**
+ * Pools one reference counted descriptor per registered file from which every StreamLease on that
+ * file reads.
+ *
+ * Once a file changes a new generation, with its own descriptor, is published for new leases.
+ * The pool drops its reference to the old generation, whose descriptor is then closed as soon as
+ * its last outstanding lease is released.
+ */
+class LeasePool {
+  static Logger log = Logger.getLogger(LeasePool.class);
+
+  private final ConcurrentMap<String,Generation> _generations;
+
+  public LeasePool() {
+    _generations = new ConcurrentHashMap<String,Generation>();
+  }
+
+  /**
+     * Lease the current generation of the file, publishing a new generation first should the
+     * file have changed since the current one was opened
+     *
+     * @return a new lease, else null if the file could not be opened
+     */
+  public StreamLease acquire(String path, CachedFile rf) {
+    while(true) {
+      Generation g = _generations.get(path);
+
+      if(g == null || g.version() != rf.version()) {
+        g = publish(path, rf, g);
+
+        if(g == null) {
+          return null;
+        }
+      }
+
+      if(g.retain()) {
+        return new StreamLease(g);
+      }
+
+      // Lost a race with the generation being retired and closed; look again
+    }
+  }
+
+  /**
+     * Retire the current generation of the file; outstanding leases keep reading it until released
+     */
+  public void retire(String path) {
+    Generation g = _generations.remove(path);
+
+    if(g != null) {
+      g.release();
+    }
+  }
+
+  public void clear() {
+    for(String path : _generations.keySet()) {
+      retire(path);
+    }
+  }
+
+  private synchronized Generation publish(String path, CachedFile rf, Generation stale) {
+    Generation g = _generations.get(path);
+
+    if(g != stale && g != null && g.version() == rf.version()) {
+      return g;
+    }
+
+    long version = rf.version();
+    long modTime = rf.lastModified();
+
+    try {
+      g = new Generation(path, rf.openHandle(), version, modTime);
+    } catch(IOException e) {
+      log.error("Could not open file "+path+" to lease; error at: "+e.getLocalizedMessage());
+      return null;
+    }
+
+    Generation prev = _generations.put(path, g);
+
+    if(prev != null) {
+      log.debug("Published a new generation of file "+path+"; the previous one closes with its last lease.");
+      prev.release();
+    }
+
+    return g;
+  }
+
+  /**
+   * One opened version of a file. The pool holds one reference for as long as the generation is
+   * current and every lease holds another.
+   */
+  static class Generation {
+    private final String _path;
+    private final FileHandle _handle;
+    private final long _version;
+    private final long _modTime;
+    private final AtomicInteger _refs;
+
+    Generation(String path, FileHandle handle, long version, long modTime) {
+      _path = path;
+      _handle = handle;
+      _version = version;
+      _modTime = modTime;
+      _refs = new AtomicInteger(1);
+    }
+
+    FileHandle handle() {
+      return _handle;
+    }
+
+    long version() {
+      return _version;
+    }
+
+    long modTime() {
+      return _modTime;
+    }
+
+    /**
+     * @return true if a reference was taken, false if the generation has already been closed
+     */
+    boolean retain() {
+      while(true) {
+        int refs = _refs.get();
+
+        if(refs == 0) {
+          return false;
+        }
+
+        if(_refs.compareAndSet(refs, refs + 1)) {
+          return true;
+        }
+      }
+    }
+
+    void release() {
+      if(_refs.decrementAndGet() == 0) {
+        try {
+          _handle.close();
+        } catch(IOException e) {
+          log.error("Could not close leased file "+_path+"; error at: "+e.getLocalizedMessage());
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,21 @@
+package org.cache.fs;
+
+/**
+ * Receives the metrics recorded by a CacheRegistry, such that they may be forwarded to an
+ * external metrics system.
+ *
+ * Operation names are prefixed by where they were recorded: "registry." for the public registry
+ * operations, "fs." for the calls made to the underlying filesystem, and no prefix for events
+ * such as cache hits and reloads. Sinks are called on the hot path and so must not block.
+ */
+public interface MetricsSink {
+  /**
+     * Count one occurrence of the named event
+     */
+  void increment(String name);
+
+  /**
+     * Record the latency, in nanoseconds, of one call to the named operation
+     */
+  void record(String name, long nanos);
+}
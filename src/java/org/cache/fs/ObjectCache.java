@@ -0,0 +1,176 @@
+package org.cache.fs;
+
+import java.io.InputStream;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import org.cache.fs.sys.CachedFile;
+
+/**
+ * Holds the objects parsed from registered files, one per path and caller supplied key, and
+ * reparses them only once the file has changed.
+ *
+ * Without a key each path holds a single object along with the loader which parsed it; a call
+ * with a different loader reparses the file and replaces it. Holding one object per path rather
+ * than one per loader keeps a new capturing lambda on every call from growing the cache.
+ *
+ * Only one thread parses a given path and key at a time. Until the first parse completes callers
+ * wait for it; on later changes the thread which wins the reload parses the file while every
+ * other caller keeps receiving the previously parsed object. A loader which fails is not retried
+ * until the file changes again.
+ */
+class ObjectCache {
+  static Logger log = Logger.getLogger(ObjectCache.class);
+
+  /** Key of the single object held per path for callers passing no key */
+  private static final Object DEFAULT_KEY = new Object();
+
+  private final ConcurrentMap<String,ConcurrentMap<Object,Loaded>> _objects;
+
+  public ObjectCache() {
+    _objects = new ConcurrentHashMap<String,ConcurrentMap<Object,Loaded>>();
+  }
+
+  /**
+     * @param key identifies what the loader parses, or null to hold one object per path which is
+     *        reparsed whenever a different loader is given
+     * @return the object parsed by the loader from the file as of its recorded version, else the
+     *         previously parsed object should the reload be in progress or have failed
+     */
+  @SuppressWarnings("unchecked")
+  public <T> T get(String path, Object key, CachedFile rf, Function<InputStream,T> loader) {
+    Loaded loaded = entry(path, key == null ? DEFAULT_KEY : key);
+    Function<InputStream,?> expected = key == null ? loader : null;
+    long version = rf.version();
+    Parsed parsed = loaded.parsed;
+
+    if(parsed != null && parsed.isFrom(expected)) {
+      if(parsed.version != version && !loaded.hasFailed(version, expected) && loaded.loading.compareAndSet(false, true)) {
+        try {
+          parsed = load(path, rf, loader, expected, loaded, version, parsed);
+        } finally {
+          loaded.loading.set(false);
+        }
+      }
+
+      return (T)parsed.value;
+    }
+
+    synchronized(loaded) {
+      parsed = loaded.parsed;
+
+      if((parsed == null || !parsed.isFrom(expected)) && !loaded.hasFailed(version, expected)) {
+        parsed = load(path, rf, loader, expected, loaded, version, parsed);
+      }
+
+      return parsed != null && parsed.isFrom(expected) ? (T)parsed.value : null;
+    }
+  }
+
+  /**
+     * Forget every object parsed from the path
+     */
+  public void remove(String path) {
+    _objects.remove(path);
+  }
+
+  public void clear() {
+    _objects.clear();
+  }
+
+  private Loaded entry(String path, Object key) {
+    ConcurrentMap<Object,Loaded> keys = _objects.get(path);
+
+    if(keys == null) {
+      ConcurrentMap<Object,Loaded> prev = _objects.putIfAbsent(path, keys = new ConcurrentHashMap<Object,Loaded>());
+
+      if(prev != null) {
+        keys = prev;
+      }
+    }
+
+    Loaded loaded = keys.get(key);
+
+    if(loaded == null) {
+      Loaded prev = keys.putIfAbsent(key, loaded = new Loaded());
+
+      if(prev != null) {
+        loaded = prev;
+      }
+    }
+
+    return loaded;
+  }
+
+  /**
+     * @return the newly parsed object, else the previous one should the file not be read
+     */
+  private Parsed load(String path, CachedFile rf, Function<InputStream,?> loader, Function<InputStream,?> expected,
+                      Loaded loaded, long version, Parsed previous) {
+    InputStream in = rf.newInputStream();
+
+    if(in == null) {
+      return previous;
+    }
+
+    try {
+      Parsed parsed = new Parsed(loader.apply(in), expected, version);
+
+      loaded.parsed = parsed;
+
+      log.debug("Loaded object from path "+path+".");
+
+      return parsed;
+    } catch(RuntimeException e) {
+      loaded.failed = new Parsed(null, expected, version);
+      log.error("Could not load object from path "+path+"; keeping the previous object until the file changes; error at: "+e.getLocalizedMessage());
+
+      return previous;
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+  private static class Loaded {
+    final AtomicBoolean loading = new AtomicBoolean(false);
+    volatile Parsed parsed = null;
+    /** The loader and version of the last failed parse, with no value */
+    volatile Parsed failed = null;
+
+    /**
+       * @return true if the loader already failed on this version of the file
+       */
+    boolean hasFailed(long version, Function<InputStream,?> expected) {
+      Parsed f = failed;
+      return f != null && f.version == version && f.isFrom(expected);
+    }
+  }
+
+  /**
+   * An object along with the loader and version of the file it was parsed from, published as one
+   */
+  private static class Parsed {
+    final Object value;
+    final Function<InputStream,?> loader;
+    final long version;
+
+    Parsed(Object value, Function<InputStream,?> loader, long version) {
+      this.value = value;
+      this.loader = loader;
+      this.version = version;
+    }
+
+    /**
+       * @param expected the loader the object must have been parsed by, or null if any will do
+       */
+    boolean isFrom(Function<InputStream,?> expected) {
+      return expected == null || expected.equals(loader);
+    }
+  }
+}
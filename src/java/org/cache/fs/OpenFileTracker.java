@@ -0,0 +1,321 @@
+package org.cache.fs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import org.cache.fs.sys.CachedFile;
+
+/**
+ * Tracks the files holding open descriptors along with when each was last accessed such that the
+ * number of open descriptors can be capped and descriptors left idle can be closed.
+ *
+ * Accesses only stamp the time on their file's entry, so they never contend with one another.
+ * Once the limit is exceeded a single caller sweeps the entries and closes the least recently
+ * used descriptors until the count is a tenth below the limit, such that sweeps are amortized
+ * over many accesses.
+ *
+ * Reads through the registry hold a reference on their file's entry for the duration of the
+ * read, and a descriptor is only closed once no read holds it. Only the descriptor is closed; the
+ * file stays registered and is reopened on its next access. Files are tracked whether or not a
+ * limit or idle timeout is set, such that the number of open descriptors can always be reported,
+ * but reads are only counted while one is.
+ */
+class OpenFileTracker {
+  static Logger log = Logger.getLogger(OpenFileTracker.class);
+
+  private final ConcurrentMap<String,OpenFile> _openFiles;
+  private final AtomicBoolean _sweeping;
+  private volatile int _maxOpenFiles = 0;
+  private volatile long _idleTimeout = 0;
+  private ScheduledExecutorService _reaper = null;
+
+  public OpenFileTracker() {
+    _openFiles = new ConcurrentHashMap<String,OpenFile>();
+    _sweeping = new AtomicBoolean(false);
+  }
+
+  /**
+     * @return true if either a descriptor limit or an idle timeout is set
+     */
+  public boolean isEnabled() {
+    return _maxOpenFiles > 0 || _idleTimeout > 0;
+  }
+
+  /**
+     * Record an access to the open file, closing the least recently used descriptors should the
+     * number of open files exceed the limit
+     */
+  public void touch(String path, CachedFile rf) {
+    entry(path, rf).lastAccess = System.currentTimeMillis();
+    evictIfOverLimit();
+  }
+
+  /**
+     * Record an access about to read through the file's descriptor. The descriptor is not closed
+     * by the limit or idle timeout until the access is passed to exit.
+     *
+     * @return the access to pass to exit, else null if neither a limit nor an idle timeout is set
+     */
+  public OpenFile enter(String path, CachedFile rf) {
+    if(!isEnabled()) {
+      touch(path, rf);
+      return null;
+    }
+
+    while(true) {
+      OpenFile of = entry(path, rf);
+
+      if(of.retain()) {
+        of.lastAccess = System.currentTimeMillis();
+        evictIfOverLimit();
+        return of;
+      }
+
+      // Lost a race with the descriptor being closed; wait for the close to finish, as the next
+      // read reopens it, then track the file afresh
+      synchronized(of) {
+        _openFiles.remove(path, of);
+      }
+    }
+  }
+
+  /**
+     * Release an access returned by enter
+     */
+  public void exit(OpenFile of) {
+    if(of != null) {
+      of.release();
+    }
+  }
+
+  /**
+     * Stop tracking the path; the caller is responsible for closing its descriptor
+     */
+  public void remove(String path) {
+    _openFiles.remove(path);
+  }
+
+  /**
+     * Close every descriptor which has not been accessed within the idle timeout
+     */
+  public void reap() {
+    long idleTimeout = _idleTimeout;
+
+    if(idleTimeout <= 0) {
+      return;
+    }
+
+    long cutoff = System.currentTimeMillis() - idleTimeout;
+    int reaped = 0;
+
+    for(OpenFile of : _openFiles.values()) {
+      if(of.lastAccess <= cutoff && close(of)) {
+        reaped++;
+      }
+    }
+
+    if(reaped > 0) {
+      log.debug("Closed "+reaped+" file descriptors idle for over "+idleTimeout+"ms.");
+    }
+  }
+
+  public int size() {
+    return _openFiles.size();
+  }
+
+  public void setMaxOpenFiles(int maxOpenFiles) {
+    _maxOpenFiles = maxOpenFiles;
+  }
+
+  /**
+     * Set the idle timeout, starting the background reaper if it is not already running
+     */
+  public synchronized void setIdleTimeout(long idleTimeout) {
+    _idleTimeout = idleTimeout;
+
+    if(idleTimeout > 0 && _reaper == null) {
+      _reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "cache-registry-reaper");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+      long period = Math.max(1, idleTimeout / 2);
+
+      _reaper.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            reap();
+          } catch(RuntimeException e) {
+            log.error("Could not reap idle file descriptors; error at: "+e.getLocalizedMessage());
+          }
+        }
+      }, period, period, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+     * Stop the background reaper and forget all tracked files
+     */
+  public synchronized void shutdown() {
+    if(_reaper != null) {
+      _reaper.shutdownNow();
+      _reaper = null;
+    }
+
+    _openFiles.clear();
+  }
+
+  /**
+     * @return the entry tracking the file under the path, replacing any left by a file previously
+     *         registered there
+     */
+  private OpenFile entry(String path, CachedFile rf) {
+    while(true) {
+      OpenFile of = _openFiles.get(path);
+
+      if(of != null && of.file == rf) {
+        return of;
+      }
+
+      OpenFile created = new OpenFile(path, rf);
+
+      if(of == null ? _openFiles.putIfAbsent(path, created) == null : _openFiles.replace(path, of, created)) {
+        return created;
+      }
+    }
+  }
+
+  private void evictIfOverLimit() {
+    int maxOpenFiles = _maxOpenFiles;
+
+    if(maxOpenFiles <= 0 || _openFiles.size() <= maxOpenFiles || !_sweeping.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      evict(maxOpenFiles);
+    } finally {
+      _sweeping.set(false);
+    }
+  }
+
+  /**
+     * Close the least recently accessed descriptors not being read until the count is a tenth
+     * below the limit
+     */
+  private void evict(int maxOpenFiles) {
+    List<Access> accesses = new ArrayList<Access>(_openFiles.size());
+
+    // The times are copied as accesses keep stamping them while the entries are sorted
+    for(OpenFile of : _openFiles.values()) {
+      accesses.add(new Access(of, of.lastAccess));
+    }
+
+    Collections.sort(accesses, new Comparator<Access>() {
+      public int compare(Access a, Access b) {
+        return Long.compare(a.at, b.at);
+      }
+    });
+
+    int excess = _openFiles.size() - (maxOpenFiles - maxOpenFiles / 10);
+    int evicted = 0;
+
+    for(int i = 0; i < accesses.size() && evicted < excess; i++) {
+      if(close(accesses.get(i).file)) {
+        evicted++;
+      }
+    }
+
+    if(evicted > 0) {
+      log.debug("Closed "+evicted+" least recently used file descriptors to stay within the limit of "+maxOpenFiles+".");
+    }
+  }
+
+  /**
+     * Close the file's descriptor and stop tracking it, unless it is being read
+     *
+     * @return true if the descriptor was closed
+     */
+  private boolean close(OpenFile of) {
+    synchronized(of) {
+      if(!of.retire()) {
+        return false;
+      }
+
+      _openFiles.remove(of.path, of);
+      of.file.close();
+
+      return true;
+    }
+  }
+
+  /**
+   * A tracked file along with the number of reads in progress through its descriptor, or -1 once
+   * the descriptor has been closed
+   */
+  static class OpenFile {
+    final String path;
+    final CachedFile file;
+    final AtomicInteger readers = new AtomicInteger(0);
+    volatile long lastAccess;
+
+    OpenFile(String path, CachedFile file) {
+      this.path = path;
+      this.file = file;
+      this.lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+       * @return true if a read was counted, false if the descriptor has been closed
+       */
+    boolean retain() {
+      while(true) {
+        int n = readers.get();
+
+        if(n < 0) {
+          return false;
+        }
+
+        if(readers.compareAndSet(n, n + 1)) {
+          return true;
+        }
+      }
+    }
+
+    void release() {
+      readers.decrementAndGet();
+    }
+
+    /**
+       * @return true if no read was in progress and the entry is now marked closed
+       */
+    boolean retire() {
+      return readers.compareAndSet(0, -1);
+    }
+  }
+
+  private static class Access {
+    final OpenFile file;
+    final long at;
+
+    Access(OpenFile file, long at) {
+      this.file = file;
+      this.at = at;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package org.cache.fs;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Registers the files of registered directories and loads their contents on background threads,
+ * such that the first read of each is served from memory.
+ *
+ * A directory's files are prefetched once it is registered, and any files added to it once its
+ * listing is rebuilt. At most the given number of files are loaded at once; a file already
+ * waiting to be loaded is not queued again. Only files newly stored in the registry are watched,
+ * so neither files rejected by the filter nor those already registered gain another watch.
+ */
+class Prefetcher {
+  static Logger log = Logger.getLogger(Prefetcher.class);
+
+  private final CacheRegistry _registry;
+  private final Predicate<String> _filter;
+  private final ThreadPoolExecutor _pool;
+  private final Set<String> _pending;
+
+  /**
+     * @param filter accepts the paths of the files to prefetch, or null to prefetch every file
+     */
+  public Prefetcher(CacheRegistry registry, int parallelism, Predicate<String> filter) {
+    final AtomicInteger threads = new AtomicInteger();
+
+    _registry = registry;
+    _filter = filter;
+    _pending = ConcurrentHashMap.<String>newKeySet();
+    _pool = new ThreadPoolExecutor(parallelism, parallelism, 0, TimeUnit.MILLISECONDS,
+                                   new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "cache-registry-prefetch-"+threads.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+     * Prefetch every file within the newly registered directory
+     */
+  public void directory(final String path) {
+    submit(new Runnable() {
+      public void run() {
+        for(String file : _registry.registerChildFiles(path, _filter)) {
+          file(file);
+        }
+      }
+    });
+  }
+
+  /**
+     * Prefetch the files added to the directory between the two listings
+     */
+  public void listingChanged(List<String> before, List<String> after) {
+    Set<String> known = new HashSet<String>(before);
+
+    for(String child : after) {
+      if(!known.contains(child) && (_filter == null || _filter.test(child))) {
+        file(child);
+      }
+    }
+  }
+
+  public void shutdown() {
+    _pool.shutdownNow();
+    _pending.clear();
+  }
+
+  private void file(final String path) {
+    if(!_pending.add(path)) {
+      return;
+    }
+
+    submit(new Runnable() {
+      public void run() {
+        try {
+          _registry.prefetchFile(path);
+        } finally {
+          _pending.remove(path);
+        }
+      }
+    });
+  }
+
+  private void submit(final Runnable task) {
+    try {
+      _pool.execute(new Runnable() {
+        public void run() {
+          try {
+            task.run();
+          } catch(RuntimeException e) {
+            log.error("Could not prefetch; error at: "+e.getLocalizedMessage());
+          }
+        }
+      });
+    } catch(RejectedExecutionException e) {
+      log.debug("Prefetching has been shut down; not prefetching.");
+    }
+  }
+}
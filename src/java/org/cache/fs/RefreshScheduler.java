@@ -0,0 +1,203 @@
+package org.cache.fs;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Revalidates registered paths on background threads such that request threads never wait on a
+ * staleness check.
+ *
+ * Each path is polled on its own adaptive interval: a path found changed is next polled at the
+ * minimum interval while a path found unchanged has its interval doubled, up to the maximum.
+ * Changes are reported to listeners from a separate dispatch thread.
+ */
+class RefreshScheduler {
+  static Logger log = Logger.getLogger(RefreshScheduler.class);
+
+  private final CacheRegistry _registry;
+  private final ScheduledExecutorService _pollers;
+  private final ExecutorService _dispatcher;
+  private final ConcurrentMap<String,ScheduledPath> _paths;
+  private final CopyOnWriteArrayList<RegistryListener> _listeners;
+  private volatile long _minInterval;
+  private volatile long _maxInterval;
+
+  public RefreshScheduler(CacheRegistry registry, int threads, long minInterval, long maxInterval,
+                          CopyOnWriteArrayList<RegistryListener> listeners) {
+    _registry = registry;
+    _pollers = Executors.newScheduledThreadPool(threads, daemonThreads("cache-registry-refresh"));
+    _dispatcher = Executors.newSingleThreadExecutor(daemonThreads("cache-registry-listener"));
+    _paths = new ConcurrentHashMap<String,ScheduledPath>();
+    _listeners = listeners;
+    _minInterval = minInterval;
+    _maxInterval = maxInterval;
+  }
+
+  /**
+     * Begin polling the path if it is not already scheduled
+     */
+  public void schedule(String path) {
+    ScheduledPath sp = new ScheduledPath(path, _minInterval);
+
+    if(_paths.putIfAbsent(path, sp) == null) {
+      submit(sp);
+    }
+  }
+
+  /**
+     * Stop polling the path
+     */
+  public void cancel(String path) {
+    _paths.remove(path);
+  }
+
+  /**
+     * @return true if the path is polled in the background
+     */
+  public boolean isScheduled(String path) {
+    return _paths.containsKey(path);
+  }
+
+  /**
+     * @return true if a change to the path has been found but not yet applied
+     */
+  public boolean isPending(String path) {
+    ScheduledPath sp = _paths.get(path);
+    return sp != null && sp.pending;
+  }
+
+  public void setIntervals(long minInterval, long maxInterval) {
+    _minInterval = minInterval;
+    _maxInterval = maxInterval;
+  }
+
+  public void shutdown() {
+    _paths.clear();
+    _pollers.shutdownNow();
+    _dispatcher.shutdown();
+  }
+
+  public void fireModified(final String path) {
+    dispatch(new Runnable() {
+      public void run() {
+        for(RegistryListener l : _listeners) {
+          l.modified(path);
+        }
+      }
+    });
+  }
+
+  public void fireDeleted(final String path) {
+    dispatch(new Runnable() {
+      public void run() {
+        for(RegistryListener l : _listeners) {
+          l.deleted(path);
+        }
+      }
+    });
+  }
+
+  public void fireCreated(final String directory, final String path) {
+    dispatch(new Runnable() {
+      public void run() {
+        for(RegistryListener l : _listeners) {
+          l.created(directory, path);
+        }
+      }
+    });
+  }
+
+  /**
+     * Mark a path as having a change found against it until the registry has applied it
+     */
+  void setPending(String path, boolean pending) {
+    ScheduledPath sp = _paths.get(path);
+
+    if(sp != null) {
+      sp.pending = pending;
+    }
+  }
+
+  private void dispatch(final Runnable r) {
+    if(_listeners.isEmpty()) {
+      return;
+    }
+
+    _dispatcher.execute(new Runnable() {
+      public void run() {
+        try {
+          r.run();
+        } catch(RuntimeException e) {
+          log.error("Registry listener failed; error at: "+e.getLocalizedMessage());
+        }
+      }
+    });
+  }
+
+  private void submit(ScheduledPath sp) {
+    try {
+      _pollers.schedule(sp, sp.interval, TimeUnit.MILLISECONDS);
+    } catch(RejectedExecutionException e) {
+      _paths.remove(sp.path, sp);
+    }
+  }
+
+  private static ThreadFactory daemonThreads(final String name) {
+    final AtomicInteger count = new AtomicInteger();
+
+    return new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name+"-"+count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+
+  private class ScheduledPath implements Runnable {
+    final String path;
+    volatile long interval;
+    volatile boolean pending = false;
+
+    ScheduledPath(String path, long interval) {
+      this.path = path;
+      this.interval = interval;
+    }
+
+    public void run() {
+      if(_paths.get(path) != this) {
+        return;
+      }
+
+      Boolean changed = null;
+
+      try {
+        changed = _registry.revalidate(path);
+      } catch(RuntimeException e) {
+        log.error("Could not revalidate path "+path+" in the background; error at: "+e.getLocalizedMessage());
+        changed = false;
+      }
+
+      if(changed == null) {
+        _paths.remove(path, this);
+        return;
+      }
+
+      interval = changed ? _minInterval : Math.min(_maxInterval, Math.max(_minInterval, interval * 2));
+
+      if(_paths.get(path) == this) {
+        submit(this);
+      }
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package org.cache.fs;
+
+/**
+ * Receives changes to registered paths found by the background refresh of a CacheRegistry.
+ *
+ * Callbacks are made on a dedicated dispatch thread, in the order the changes were found, after
+ * the registry has already refreshed its cached state for the path.
+ */
+public interface RegistryListener {
+  /**
+     * Called when a registered file or directory has been modified
+     */
+  void modified(String path);
+
+  /**
+     * Called when a registered file or directory no longer exists; the path has been unregistered
+     */
+  void deleted(String path);
+
+  /**
+     * Called for each entry which has appeared in the listing of a registered directory
+     *
+     * @param directory the registered directory path
+     * @param path the path of the new entry as returned by list
+     */
+  void created(String directory, String path);
+}
@@ -0,0 +1,206 @@
+package org.cache.fs;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Counts events and records latencies for a registry with LongAdders, such that recording from
+ * many threads at once does not contend, and forwards every measurement to any MetricsSink.
+ *
+ * Latencies are kept in histograms with one bucket per power of two nanoseconds.
+ */
+class RegistryMetrics {
+  static Logger log = Logger.getLogger(RegistryMetrics.class);
+
+  private final ConcurrentMap<String,LongAdder> _counters;
+  private final ConcurrentMap<String,Histogram> _latencies;
+  private final CopyOnWriteArrayList<MetricsSink> _sinks;
+
+  public RegistryMetrics() {
+    _counters = new ConcurrentHashMap<String,LongAdder>();
+    _latencies = new ConcurrentHashMap<String,Histogram>();
+    _sinks = new CopyOnWriteArrayList<MetricsSink>();
+  }
+
+  public void increment(String name) {
+    LongAdder counter = _counters.get(name);
+
+    if(counter == null) {
+      LongAdder prev = _counters.putIfAbsent(name, counter = new LongAdder());
+
+      if(prev != null) {
+        counter = prev;
+      }
+    }
+
+    counter.increment();
+
+    for(MetricsSink sink : _sinks) {
+      try {
+        sink.increment(name);
+      } catch(RuntimeException e) {
+        log.error("Metrics sink "+sink+" failed to count "+name+"; error at: "+e.getLocalizedMessage());
+      }
+    }
+  }
+
+  /**
+     * Record the time elapsed since the given System.nanoTime
+     */
+  public void record(String name, long start) {
+    long nanos = System.nanoTime() - start;
+    Histogram histogram = _latencies.get(name);
+
+    if(histogram == null) {
+      Histogram prev = _latencies.putIfAbsent(name, histogram = new Histogram());
+
+      if(prev != null) {
+        histogram = prev;
+      }
+    }
+
+    histogram.record(nanos);
+
+    for(MetricsSink sink : _sinks) {
+      try {
+        sink.record(name, nanos);
+      } catch(RuntimeException e) {
+        log.error("Metrics sink "+sink+" failed to record "+name+"; error at: "+e.getLocalizedMessage());
+      }
+    }
+  }
+
+  public void addSink(MetricsSink sink) {
+    _sinks.addIfAbsent(sink);
+  }
+
+  public void removeSink(MetricsSink sink) {
+    _sinks.remove(sink);
+  }
+
+  public Map<String,Long> counters() {
+    Map<String,Long> counts = new TreeMap<String,Long>();
+
+    for(Map.Entry<String,LongAdder> kv : _counters.entrySet()) {
+      counts.put(kv.getKey(), kv.getValue().sum());
+    }
+
+    return counts;
+  }
+
+  public Map<String,Long> callCounts() {
+    Map<String,Long> counts = new TreeMap<String,Long>();
+
+    for(Map.Entry<String,Histogram> kv : _latencies.entrySet()) {
+      counts.put(kv.getKey(), kv.getValue().count());
+    }
+
+    return counts;
+  }
+
+  public Map<String,Long> meanMicros() {
+    Map<String,Long> means = new TreeMap<String,Long>();
+
+    for(Map.Entry<String,Histogram> kv : _latencies.entrySet()) {
+      means.put(kv.getKey(), TimeUnit.NANOSECONDS.toMicros(kv.getValue().mean()));
+    }
+
+    return means;
+  }
+
+  public Map<String,Long> percentileMicros(double percentile) {
+    Map<String,Long> values = new TreeMap<String,Long>();
+
+    for(Map.Entry<String,Histogram> kv : _latencies.entrySet()) {
+      values.put(kv.getKey(), TimeUnit.NANOSECONDS.toMicros(kv.getValue().percentile(percentile)));
+    }
+
+    return values;
+  }
+
+  public Map<String,Long> maxMicros() {
+    Map<String,Long> values = new TreeMap<String,Long>();
+
+    for(Map.Entry<String,Histogram> kv : _latencies.entrySet()) {
+      values.put(kv.getKey(), TimeUnit.NANOSECONDS.toMicros(kv.getValue().max()));
+    }
+
+    return values;
+  }
+
+  public void reset() {
+    _counters.clear();
+    _latencies.clear();
+  }
+
+  /**
+   * A latency histogram with one bucket per power of two nanoseconds
+   */
+  private static class Histogram {
+    private final LongAdder[] _buckets = new LongAdder[64];
+    private final LongAdder _count = new LongAdder();
+    private final LongAdder _sum = new LongAdder();
+    private final LongAccumulator _max = new LongAccumulator(new LongBinaryOperator() {
+      public long applyAsLong(long a, long b) {
+        return Math.max(a, b);
+      }
+    }, 0);
+
+    Histogram() {
+      for(int i = 0; i < _buckets.length; i++) {
+        _buckets[i] = new LongAdder();
+      }
+    }
+
+    void record(long nanos) {
+      nanos = Math.max(0, nanos);
+
+      // Bucket i holds latencies of at least 2^(i-1) and under 2^i nanoseconds
+      _buckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+      _count.increment();
+      _sum.add(nanos);
+      _max.accumulate(nanos);
+    }
+
+    long count() {
+      return _count.sum();
+    }
+
+    long mean() {
+      long count = _count.sum();
+      return count == 0 ? 0 : _sum.sum() / count;
+    }
+
+    long max() {
+      return _max.get();
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the given percentile
+     */
+    long percentile(double percentile) {
+      long count = _count.sum();
+      long rank = (long)Math.ceil(count * percentile / 100.0);
+      long seen = 0;
+
+      for(int i = 0; i < _buckets.length; i++) {
+        seen += _buckets[i].sum();
+
+        if(count > 0 && seen >= rank) {
+          return i == 0 ? 0 : Math.min(max(), (1L << i) - 1);
+        }
+      }
+
+      return max();
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package org.cache.fs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A compact on-disk record of what a registry held, such that a restarted process can restore
+ * its registrations, and optionally the cached contents of its files, without first opening and
+ * statting every path again.
+ *
+ * Files are recorded in the order their contents were last accessed, least recent first, such
+ * that restoring them in order rebuilds the content cache's eviction order. Snapshots are always
+ * written to the local filesystem, through a temporary file in the same directory renamed into
+ * place, so a reader never observes a partially written snapshot.
+ */
+class RegistrySnapshot {
+  private static final int MAGIC = 0x43525331;
+  private static final int FORMAT_VERSION = 1;
+
+  private final List<DirectoryEntry> _directories;
+  private final List<FileEntry> _files;
+
+  public RegistrySnapshot() {
+    _directories = new ArrayList<DirectoryEntry>();
+    _files = new ArrayList<FileEntry>();
+  }
+
+  public void addDirectory(String path, boolean deep) {
+    _directories.add(new DirectoryEntry(path, deep));
+  }
+
+  /**
+     * @param contents the contents of the file as of the recorded status, or null if none are kept
+     */
+  public void addFile(String path, long modTime, long length, byte[] contents) {
+    _files.add(new FileEntry(path, modTime, length, contents));
+  }
+
+  public List<DirectoryEntry> directories() {
+    return _directories;
+  }
+
+  /**
+     * @return the recorded files in the order their contents were last accessed, least recent first
+     */
+  public List<FileEntry> files() {
+    return _files;
+  }
+
+  public void write(File target) throws IOException {
+    File parent = target.getAbsoluteFile().getParentFile();
+
+    parent.mkdirs();
+
+    // Unique per writer such that concurrent saves to the same target never share a file
+    File tmp = Files.createTempFile(parent.toPath(), target.getName()+".", ".tmp").toFile();
+    DataOutputStream out = null;
+
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+
+      out.writeInt(_directories.size());
+
+      for(DirectoryEntry dir : _directories) {
+        out.writeUTF(dir.path);
+        out.writeBoolean(dir.deep);
+      }
+
+      out.writeInt(_files.size());
+
+      for(FileEntry file : _files) {
+        out.writeUTF(file.path);
+        out.writeLong(file.modTime);
+        out.writeLong(file.length);
+
+        if(file.contents == null) {
+          out.writeInt(-1);
+        } else {
+          out.writeInt(file.contents.length);
+          out.write(file.contents);
+        }
+      }
+
+      out.close();
+      out = null;
+
+      Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      IOUtils.closeQuietly(out);
+      tmp.delete();
+    }
+  }
+
+  /**
+     * @throws IOException if the snapshot could not be read or was not written by this format
+     */
+  public static RegistrySnapshot read(File source) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(source)));
+
+    try {
+      if(in.readInt() != MAGIC) {
+        throw new IOException("File "+source+" is not a registry snapshot.");
+      }
+
+      int version = in.readInt();
+
+      if(version != FORMAT_VERSION) {
+        throw new IOException("Registry snapshot "+source+" has unsupported format version "+version+".");
+      }
+
+      RegistrySnapshot snapshot = new RegistrySnapshot();
+
+      for(int i = in.readInt(); i > 0; i--) {
+        snapshot.addDirectory(in.readUTF(), in.readBoolean());
+      }
+
+      for(int i = in.readInt(); i > 0; i--) {
+        String path = in.readUTF();
+        long modTime = in.readLong();
+        long length = in.readLong();
+        int size = in.readInt();
+        byte[] contents = null;
+
+        if(size >= 0) {
+          contents = new byte[size];
+          in.readFully(contents);
+        }
+
+        snapshot.addFile(path, modTime, length, contents);
+      }
+
+      return snapshot;
+    } finally {
+      in.close();
+    }
+  }
+
+  public static class DirectoryEntry {
+    final String path;
+    final boolean deep;
+
+    DirectoryEntry(String path, boolean deep) {
+      this.path = path;
+      this.deep = deep;
+    }
+  }
+
+  public static class FileEntry {
+    final String path;
+    final long modTime;
+    final long length;
+    final byte[] contents;
+
+    FileEntry(String path, long modTime, long length, byte[] contents) {
+      this.path = path;
+      this.modTime = modTime;
+      this.length = length;
+      this.contents = contents;
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package org.cache.fs;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls made under the same key such that only the first caller performs
+ * the call while every caller arriving before it completes waits for, and shares, its result.
+ *
+ * Calls made after the first has completed run again; nothing is cached beyond the call itself.
+ */
+class SingleFlight {
+  private final ConcurrentMap<String,CompletableFuture<Object>> _calls;
+
+  public SingleFlight() {
+    _calls = new ConcurrentHashMap<String,CompletableFuture<Object>>();
+  }
+
+  /**
+     * Perform the call unless one is already in flight for the key, in which case wait for it
+     *
+     * @return the result of the call in flight
+     */
+  @SuppressWarnings("unchecked")
+  public <T> T run(String key, Supplier<T> call) {
+    CompletableFuture<Object> flight = new CompletableFuture<Object>();
+    CompletableFuture<Object> inFlight = _calls.putIfAbsent(key, flight);
+
+    if(inFlight != null) {
+      try {
+        return (T)inFlight.join();
+      } catch(CompletionException e) {
+        if(e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException)e.getCause();
+        }
+
+        throw e;
+      }
+    }
+
+    try {
+      T result = call.get();
+      flight.complete(result);
+      return result;
+    } catch(RuntimeException e) {
+      flight.completeExceptionally(e);
+      throw e;
+    } catch(Error e) {
+      flight.completeExceptionally(e);
+      throw e;
+    } finally {
+      _calls.remove(key, flight);
+    }
+  }
+
+  /**
+     * @return true if a call is currently in flight for the key
+     */
+  public boolean isInFlight(String key) {
+    return _calls.containsKey(key);
+  }
+}
@@ -0,0 +1,101 @@
+package org.cache.fs;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An independent reader over a registered file, as returned by CacheRegistry.acquire.
+ *
+ * Each lease keeps its own position over a descriptor shared with every other lease of the same
+ * file generation. The descriptor stays open for as long as any lease on it is held, even after
+ * the registry has moved on to a newer generation of the file, so a lease is never closed beneath
+ * its reader. Every lease must be closed exactly once; closing it again does nothing.
+ *
+ * Reads are positioned reads on the shared descriptor, so callers reading a byte at a time should
+ * wrap the lease in a BufferedInputStream.
+ */
+public class StreamLease extends InputStream {
+  private final LeasePool.Generation _generation;
+  private final AtomicBoolean _closed;
+  private long _position;
+
+  StreamLease(LeasePool.Generation generation) {
+    _generation = generation;
+    _closed = new AtomicBoolean(false);
+    _position = 0;
+  }
+
+  /**
+     * @return the modification time of the file generation this lease reads
+     */
+  public long lastModified() {
+    return _generation.modTime();
+  }
+
+  public long getPosition() {
+    return _position;
+  }
+
+  public void seek(long position) {
+    _position = position;
+  }
+
+  /**
+     * Read from the given position without moving the position of the lease
+     */
+  public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+    ensureOpen();
+    return _generation.handle().read(position, buffer, offset, length);
+  }
+
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int n = read(b, 0, 1);
+
+    return n < 0 ? -1 : (b[0] & 0xff);
+  }
+
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if(length == 0) {
+      return 0;
+    }
+
+    int n = read(_position, buffer, offset, length);
+
+    if(n > 0) {
+      _position += n;
+    }
+
+    return n;
+  }
+
+  public long skip(long n) throws IOException {
+    ensureOpen();
+
+    if(n <= 0) {
+      return 0;
+    }
+
+    _position += n;
+
+    return n;
+  }
+
+  /**
+     * Release the lease, closing the shared descriptor if this was the last lease on a retired
+     * generation
+     */
+  public void close() {
+    if(_closed.compareAndSet(false, true)) {
+      _generation.release();
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if(_closed.get()) {
+      throw new IOException("Attempted to read from a released lease.");
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package org.cache.fs;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import org.cache.fs.sys.PathStatus;
+
+/**
+ * A Merkle style fingerprint over every file and directory below a registered directory.
+ *
+ * Each file contributes its modification time, length, and file id; each directory the hashes of
+ * its children. A scan lists every directory in the subtree once; branches whose hashes did not
+ * change keep their previous nodes, so a scan only allocates for the branches which changed.
+ *
+ * Checks never scan on the calling thread. They answer from the most recent scan and, once it is
+ * older than the scan interval, start a single rescan on the given executor.
+ */
+class SubtreeFingerprint {
+  static Logger log = Logger.getLogger(SubtreeFingerprint.class);
+
+  private final CacheRegistry _registry;
+  private final String _path;
+  private final long _scanInterval;
+  private final Executor _executor;
+  private final AtomicBoolean _scanning;
+  private volatile Node _accepted = null;
+  private volatile Node _latest = null;
+  private volatile long _scannedAt = 0;
+
+  public SubtreeFingerprint(CacheRegistry registry, String path, long scanInterval, Executor executor) {
+    _registry = registry;
+    _path = path;
+    _scanInterval = scanInterval;
+    _executor = executor;
+    _scanning = new AtomicBoolean();
+  }
+
+  /**
+     * @return true if anything in the subtree changed since the fingerprint was last accepted, as
+     *         of the most recent scan
+     */
+  public boolean isChanged() {
+    Node accepted = _accepted;
+
+    if(accepted == null) {
+      accept();
+      return false;
+    }
+
+    if(System.currentTimeMillis() - _scannedAt >= _scanInterval) {
+      rescan();
+    }
+
+    return _latest.hash != accepted.hash;
+  }
+
+  /**
+     * Accept the most recently scanned state of the subtree as unchanged. The first call scans
+     * the subtree on the calling thread.
+     */
+  public synchronized void accept() {
+    if(_latest == null) {
+      _latest = scan(_path, null);
+      _scannedAt = System.currentTimeMillis();
+    }
+
+    _accepted = _latest;
+  }
+
+  /**
+     * Start a scan on the executor unless one is already running
+     */
+  private void rescan() {
+    if(!_scanning.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      _executor.execute(new Runnable() {
+        public void run() {
+          try {
+            _latest = scan(_path, _latest);
+            _scannedAt = System.currentTimeMillis();
+          } catch(RuntimeException e) {
+            log.error("Could not scan subtree "+_path+"; error at: "+e.getLocalizedMessage());
+          } finally {
+            _scanning.set(false);
+          }
+        }
+      });
+    } catch(RejectedExecutionException e) {
+      _scanning.set(false);
+      log.debug("Executor has been shut down; not rescanning subtree "+_path+".");
+    }
+  }
+
+  /**
+     * Rebuild the node for a directory, reusing the previous nodes of any unchanged children
+     */
+  private Node scan(String path, Node prev) {
+    List<PathStatus> children = _registry.statChildren(path);
+
+    if(children == null) {
+      // An unreadable directory hashes as empty, and so is found changed if it held anything
+      return new Node(Collections.<String,Node>emptyMap());
+    }
+
+    Map<String,Node> nodes = new TreeMap<String,Node>();
+    boolean same = prev != null && prev.children.size() == children.size();
+
+    for(PathStatus child : children) {
+      Node before = prev == null ? null : prev.children.get(child.getPath());
+      Node node = null;
+
+      if(child.isDirectory()) {
+        node = scan(child.getPath(), before != null && before.children != null ? before : null);
+      } else {
+        node = new Node(leafHash(child));
+      }
+
+      if(before != null && before.hash == node.hash) {
+        node = before;
+      } else {
+        same = false;
+      }
+
+      nodes.put(child.getPath(), node);
+    }
+
+    return same ? prev : new Node(nodes);
+  }
+
+  private static long leafHash(PathStatus stat) {
+    long h = mix(stat.getModificationTime());
+
+    h = mix(h ^ stat.getLength());
+
+    if(stat.getFileId() != null) {
+      h = mix(h ^ stat.getFileId().hashCode());
+    }
+
+    return h;
+  }
+
+  /**
+     * The 64 bit finalizer from SplitMix64
+     */
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * A file, holding only its hash, or a directory, holding its children keyed by path
+   */
+  private static class Node {
+    final long hash;
+    final Map<String,Node> children;
+
+    Node(long hash) {
+      this.hash = hash;
+      this.children = null;
+    }
+
+    Node(Map<String,Node> children) {
+      long h = mix(children.size());
+
+      for(Entry<String,Node> kv : children.entrySet()) {
+        h = mix(h ^ kv.getKey().hashCode()) + kv.getValue().hash;
+        h = mix(h);
+      }
+
+      this.hash = h;
+      this.children = children;
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package org.cache.fs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Predicate;
+
+import org.cache.fs.sys.CachedDirectory;
+
+/**
+ * Registers the subtree below a registered directory on a fork/join pool, one task per directory.
+ *
+ * Each task lists its directory once and registers every child from that listing; the
+ * subdirectories found are then walked by forked tasks until the depth limit is reached.
+ */
+class TreeWalker extends RecursiveAction {
+  private static final long serialVersionUID = 1L;
+
+  private final CacheRegistry _registry;
+  private final String _path;
+  private final CachedDirectory _dir;
+  private final int _depth;
+  private final Predicate<String> _filter;
+  private final Collection<String> _registered;
+
+  /**
+     * @param depth the number of levels below the directory left to register, or negative for
+     *        no limit
+     */
+  public TreeWalker(CacheRegistry registry, String path, CachedDirectory dir, int depth,
+                    Predicate<String> filter, Collection<String> registered) {
+    _registry = registry;
+    _path = path;
+    _dir = dir;
+    _depth = depth;
+    _filter = filter;
+    _registered = registered;
+  }
+
+  protected void compute() {
+    if(_depth == 0) {
+      return;
+    }
+
+    List<TreeWalker> subtrees = new ArrayList<TreeWalker>();
+
+    for(Entry<String,CachedDirectory> sub : _registry.registerChildren(_path, _dir, _filter, _registered)) {
+      subtrees.add(new TreeWalker(_registry, sub.getKey(), sub.getValue(), _depth - 1, _filter, _registered));
+    }
+
+    invokeAll(subtrees);
+  }
+}
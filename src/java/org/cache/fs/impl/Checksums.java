@@ -0,0 +1,63 @@
+package org.cache.fs.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Content checksums for local files. CRC32C is used where the runtime provides it, as it is
+ * computed in hardware on most processors, else CRC32.
+ */
+class Checksums {
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final Class<?> CRC32C = crc32c();
+
+  private Checksums() { }
+
+  /**
+     * @return the checksum of the full contents of the file
+     */
+  public static long checksum(File path) throws IOException {
+    Checksum crc = newChecksum();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    InputStream in = new FileInputStream(path);
+
+    try {
+      int n;
+
+      while((n = in.read(buffer)) >= 0) {
+        crc.update(buffer, 0, n);
+      }
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+
+    return crc.getValue();
+  }
+
+  private static Checksum newChecksum() {
+    if(CRC32C != null) {
+      try {
+        return (Checksum)CRC32C.getDeclaredConstructor().newInstance();
+      } catch(ReflectiveOperationException e) {
+        // Fall through to CRC32
+      }
+    }
+
+    return new CRC32();
+  }
+
+  private static Class<?> crc32c() {
+    try {
+      return Class.forName("java.util.zip.CRC32C");
+    } catch(ClassNotFoundException e) {
+      return null;
+    }
+  }
+}
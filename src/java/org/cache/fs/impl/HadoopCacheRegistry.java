@@ -1,15 +1,26 @@
 package org.cache.fs.impl;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileChecksum;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -17,16 +28,44 @@ import org.apache.hadoop.fs.Path;
 import org.apache.log4j.Logger;
 
 import org.cache.fs.CacheRegistry;
+import org.cache.fs.Fingerprint;
 
 import org.cache.fs.sys.CachedFile;
 import org.cache.fs.sys.CachedDirectory;
-
+import org.cache.fs.sys.FileHandle;
+import org.cache.fs.sys.PathStatus;
+
+/**
+ * A CacheRegistry backed by a Hadoop FileSystem.
+ *
+ * Each registry opens a FileSystem handle of its own, rather than the JVM-wide cached one, such
+ * that destroying it never closes the FileSystem beneath other registries or callers. It keeps no
+ * per-call state on the instance, so a single registry may be shared freely between threads.
+ *
+ * Once a status TTL is set, every FileStatus fetched, including the absence of a path, is held for
+ * it such that one registry operation costs at most one call to the NameNode. Calling refreshStaleness
+ * revalidates every registered file with one listStatus call per parent directory and holds the
+ * statuses listed in the same way.
+ *
+ * When watch mode is enabled on HDFS the registry tails the inotify event stream instead, and
+ * staleness checks read a flag set by events. This requires superuser access to the NameNode;
+ * where the stream is unavailable the registry continues to poll.
+ */
 public class HadoopCacheRegistry extends CacheRegistry {
   static Logger log = Logger.getLogger(HadoopCacheRegistry.class);
 
-  private static FileSystem _fs = null;
-  private Path _path = null;
+  /** Default time, in milliseconds, a fetched FileStatus remains trusted; none is held */
+  public static final long DEFAULT_STATUS_TTL = 0;
+
+  private final FileSystem _fs;
 	private static final String HADOOP_COPYING_SUFFIX = "_COPYING_";
+  private final StatusCache<FileStatus> _statuses;
+  private final StatusCache.Loader<FileStatus> _statusLoader;
+  private volatile HdfsWatcher _watcher = null;
+  private volatile LocalTier _tier = null;
+  private volatile FileSystem _localFs = null;
+  /** Set once the FileSystem returns no checksum, after which none is asked for */
+  private volatile boolean _checksumUnsupported = false;
 
   public HadoopCacheRegistry() throws IOException {
     this(new Configuration());
@@ -34,10 +73,326 @@ public class HadoopCacheRegistry extends CacheRegistry {
 
   public HadoopCacheRegistry(Configuration conf) throws IOException {
     super();
-		_fs = FileSystem.get(conf);
+    _fs = FileSystem.newInstance(conf);
+    _statuses = new StatusCache<FileStatus>(DEFAULT_STATUS_TTL);
+    _statusLoader = new StatusCache.Loader<FileStatus>() {
+      public FileStatus load(String key) throws IOException {
+        try {
+          long start = System.nanoTime();
+
+          try {
+            return _fs.getFileStatus(new Path(key));
+          } finally {
+            recordCall("getFileStatus", start);
+          }
+        } catch(FileNotFoundException e) {
+          return null;
+        }
+      }
+    };
+  }
+
+  /**
+     * Set how long, in milliseconds, a fetched FileStatus is trusted before staleness and type
+     * checks go back to the FileSystem, or zero to always go back
+     */
+  public void setStatusTtl(long statusTtl) {
+    _statuses.setTtl(statusTtl);
+  }
+
+  /**
+     * Serve reads of registered files from copies kept in a local directory, bounded by the given
+     * number of bytes, rather than from the FileSystem
+     *
+     * A file is copied on a background thread after its first open, which reads the FileSystem
+     * such that registering a file never waits on the copy. Later opens are served from the copy
+     * until the file is found stale and reloaded, at which point the new version is copied in its
+     * place.
+     * Copies survive restarts and are evicted least recently opened first. Pass a null directory
+     * to read from the FileSystem again.
+     *
+     * The directory may be shared by the registries of every process on the host, with the
+     * capacity bounding the directory as a whole. Each version of a file is then fetched by only
+     * one process and read by all of them.
+     *
+     * @return true if the setting was applied, else false if the directory could not be used
+     */
+  public synchronized Boolean setLocalTier(String directory, long capacity) {
+    LocalTier tier = null;
+
+    if(directory != null) {
+      try {
+        _localFs = FileSystem.getLocal(_fs.getConf()).getRaw();
+        tier = new LocalTier(new File(directory), capacity);
+      } catch(IOException e) {
+        log.error("Could not use local tier directory "+directory+"; error at: "+e.getLocalizedMessage());
+        return false;
+      }
+    }
+
+    LocalTier prev = _tier;
+
+    _tier = tier;
+
+    if(prev != null) {
+      prev.close();
+    }
+
+    return true;
+  }
+
+  /**
+     * @return the status of the path, held or fetched, else null if the path does not exist
+     */
+  private FileStatus status(Path path) throws IOException {
+    return _statuses.get(key(path), _statusLoader);
+  }
+
+  /**
+     * @return the status of the path, held or fetched
+     * @throws FileNotFoundException if the path does not exist
+     */
+  private FileStatus requireStatus(Path path) throws IOException {
+    FileStatus stat = status(path);
+
+    if(stat == null) {
+      throw new FileNotFoundException("Path "+path+" does not exist.");
+    }
+
+    return stat;
+  }
+
+  private String key(Path path) {
+    return _fs.makeQualified(path).toString();
+  }
+
+  /**
+     * Drop the statuses held for a path changed through the registry: the path itself, everything
+     * beneath it, and its ancestors, which may have been created or gained or lost an entry
+     */
+  private void invalidate(Path path) {
+    Path qualified = _fs.makeQualified(path);
+
+    _statuses.invalidateTree(qualified.toString(), '/');
+
+    for(Path p = qualified.getParent(); p != null; p = p.getParent()) {
+      _statuses.invalidate(p.toString());
+    }
+  }
+
+  private FileStatus[] listStatus(Path path) throws IOException {
+    long start = System.nanoTime();
+
+    try {
+      return _fs.listStatus(path);
+    } finally {
+      recordCall("listStatus", start);
+    }
+  }
+
+  private FSDataInputStream openStream(Path path) throws IOException {
+    long start = System.nanoTime();
+
+    try {
+      return _fs.open(path);
+    } finally {
+      recordCall("open", start);
+    }
+  }
+
+  private FSDataInputStream openStream(Path path, int bufferSize) throws IOException {
+    long start = System.nanoTime();
+
+    try {
+      return _fs.open(path, bufferSize);
+    } finally {
+      recordCall("open", start);
+    }
+  }
+
+  /**
+     * Open the contents of a file as of the given status, from its local copy when the local tier
+     * is enabled and the file fits within it
+     *
+     * @param bufferSize the buffer size to open with, or zero for the default
+     */
+  private FSDataInputStream openContents(final Path path, long modTime, long length, int bufferSize) throws IOException {
+    LocalTier tier = _tier;
+
+    if(tier != null) {
+      File copy = tier.get(key(path), modTime, length, new LocalTier.Source() {
+        public InputStream open() throws IOException {
+          return openStream(path);
+        }
+      });
+
+      if(copy != null) {
+        Path local = new Path(copy.toURI());
+
+        // The copy may be evicted, by this or another process, between being found and opened;
+        // the file is then read remotely as if it had never been copied
+        try {
+          return bufferSize > 0 ? _localFs.open(local, bufferSize) : _localFs.open(local);
+        } catch(FileNotFoundException e) {
+          log.debug("Local copy of "+path+" was evicted before it could be opened; reading it remotely.");
+        }
+      }
+    }
+
+    return bufferSize > 0 ? openStream(path, bufferSize) : openStream(path);
+  }
+
+  /**
+     * @return the checksum of the file, else null if the FileSystem provides none. FileSystems
+     *         such as the local one return null for every file, so the first null disables
+     *         checksums for the life of the registry.
+     */
+  private FileChecksum fileChecksum(Path path) throws IOException {
+    if(_checksumUnsupported) {
+      return null;
+    }
+
+    long start = System.nanoTime();
+    FileChecksum checksum = null;
+
+    try {
+      checksum = _fs.getFileChecksum(path);
+    } finally {
+      recordCall("getFileChecksum", start);
+    }
+
+    if(checksum == null) {
+      _checksumUnsupported = true;
+      log.warn("FileSystem "+_fs.getUri()+" provides no file checksums; comparing file status alone.");
+    }
+
+    return checksum;
+  }
+
+  /**
+     * Revalidate every registered file in bulk
+     *
+     * Files are grouped by their parent directory and each directory is listed once, and each
+     * file is compared against the status returned by the listing, whatever the status TTL. The
+     * statuses are also held for every registered child so that subsequent isStale checks within
+     * the status TTL need no further calls.
+     *
+     * @return the registered paths of every file which is now stale or no longer exists
+     */
+  public List<String> refreshStaleness() {
+    Map<Path,List<Entry<String,HadoopFile>>> byParent = new HashMap<Path,List<Entry<String,HadoopFile>>>();
+    List<String> stale = new ArrayList<String>();
+
+    for(Entry<String,CachedFile> kv : registeredFiles().entrySet()) {
+      HadoopFile hf = (HadoopFile)kv.getValue();
+      Path parent = hf.getPath().getParent();
+      List<Entry<String,HadoopFile>> children = byParent.get(parent);
+
+      if(children == null) {
+        children = new ArrayList<Entry<String,HadoopFile>>();
+        byParent.put(parent, children);
+      }
+
+      children.add(new SimpleImmutableEntry<String,HadoopFile>(kv.getKey(), hf));
+    }
+
+    for(Entry<Path,List<Entry<String,HadoopFile>>> group : byParent.entrySet()) {
+      Map<String,FileStatus> statuses = new HashMap<String,FileStatus>();
+
+      try {
+        for(FileStatus stat : listStatus(group.getKey())) {
+          statuses.put(stat.getPath().getName(), stat);
+        }
+      } catch(FileNotFoundException e) {
+        log.debug("Directory "+group.getKey()+" no longer exists; marking its registered files as missing.");
+      } catch(IOException e) {
+        log.error("Could not list directory "+group.getKey()+" to refresh its files; error at: "+e.getLocalizedMessage());
+        continue;
+      }
+
+      for(Entry<String,HadoopFile> child : group.getValue()) {
+        HadoopFile hf = child.getValue();
+
+        FileStatus stat = statuses.get(hf.getPath().getName());
+
+        _statuses.put(key(hf.getPath()), stat);
+
+        if(hf.isStale(stat)) {
+          stale.add(child.getKey());
+        }
+      }
+    }
+
+    return stale;
+  }
+
+  /**
+     * Set whether registered paths are invalidated from the HDFS inotify event stream
+     *
+     * Enabling watch mode also watches every path already registered. Disabling it, or any
+     * failure of the event stream, returns the affected paths to polling.
+     */
+  public synchronized void setWatchMode(boolean watch) {
+    if(watch && _watcher == null) {
+      try {
+        _watcher = new HdfsWatcher(_fs);
+      } catch(IOException e) {
+        log.warn("Could not open the inotify event stream for "+_fs.getUri()+"; continuing to poll for changes; error at: "+e.getLocalizedMessage());
+        return;
+      } catch(IllegalArgumentException e) {
+        log.warn("FileSystem "+_fs.getUri()+" does not support inotify; continuing to poll for changes.");
+        return;
+      }
+
+      for(CachedFile rf : registeredFiles().values()) {
+        HadoopFile hf = (HadoopFile)rf;
+        _watcher.watchFile(hf.getPath(), hf);
+      }
+
+      for(CachedDirectory rd : registeredDirectories().values()) {
+        CachedDirectory d = unwrap(rd);
+
+        if(d instanceof HadoopDirectory) {
+          _watcher.watchDirectory(((HadoopDirectory)d).getPath(), (HadoopDirectory)d);
+        }
+      }
+    } else if(!watch && _watcher != null) {
+      _watcher.close();
+      _watcher = null;
+    }
+  }
+
+  /**
+     * Watch each newly registered path while watch mode is enabled
+     */
+  protected void registered(String path, Object entry) {
+    HdfsWatcher watcher = _watcher;
+
+    if(watcher == null) {
+      return;
+    }
+
+    if(entry instanceof HadoopFile) {
+      watcher.watchFile(((HadoopFile)entry).getPath(), (HadoopFile)entry);
+    } else if(entry instanceof HadoopDirectory) {
+      watcher.watchDirectory(((HadoopDirectory)entry).getPath(), (HadoopDirectory)entry);
+    }
+  }
+
+  protected void unregistered(String path) {
+    HdfsWatcher watcher = _watcher;
+
+    if(watcher != null) {
+      watcher.unwatch(new Path(path));
+    }
+
+    return;
   }
 
   public void close() {
+    setWatchMode(false);
+    setLocalTier(null, 0);
+
     try {
       _fs.close();
     } catch(IOException e) {
@@ -49,7 +404,8 @@ public class HadoopCacheRegistry extends CacheRegistry {
 
   public Boolean isFile(String path) {
     try {
-      return _fs.isFile(new Path(path));
+      FileStatus stat = status(new Path(path));
+      return stat != null && stat.isFile();
     } catch(IOException e) {
       log.warn("Could not determine file from path "+path+" (does it exist?); "+e.getLocalizedMessage());
       return false;
@@ -58,7 +414,8 @@ public class HadoopCacheRegistry extends CacheRegistry {
 
   public Boolean isDirectory(String path) {
     try {
-      return _fs.isDirectory(new Path(path));
+      FileStatus stat = status(new Path(path));
+      return stat != null && stat.isDirectory();
     } catch(IOException e) {
       log.warn("Could not get FileStatus object from path "+path+" as directory (does it exist?); "+e.getLocalizedMessage());
       return false;
@@ -71,6 +428,8 @@ public class HadoopCacheRegistry extends CacheRegistry {
     } catch(IOException e) {
       log.warn("Could not get FileStatus object from path "+path+" for deletion (does it exist?); "+e.getLocalizedMessage());
       return false;
+    } finally {
+      invalidate(new Path(path));
     }
   }
 
@@ -82,20 +441,22 @@ public class HadoopCacheRegistry extends CacheRegistry {
 	 *   - /b/c/a.txt ->> file
 	 */
   public String moveFile(String currPath, String newPath, Boolean mkfile) {
-    _path = new Path(FilenameUtils.getFullPath(newPath));
+    Path parent = new Path(FilenameUtils.getFullPath(newPath));
+    Path dest = null;
 
     if(mkfile) {
       Boolean exists = null;
 
       try {
-        exists = _fs.exists(_path);
+        exists = status(parent) != null;
       } catch(IOException e) {
         log.error("Could not determine if path "+newPath+" exists; error at: "+e.getLocalizedMessage());
         return null;
       }
 
       try {
-        _fs.mkdirs(_path);
+        _fs.mkdirs(parent);
+        invalidate(parent);
       } catch(IOException e) {
         log.error("Could not create file as path "+newPath+"; error at "+e.getLocalizedMessage());
         return null;
@@ -105,19 +466,21 @@ public class HadoopCacheRegistry extends CacheRegistry {
     if(isDirectory(newPath) ||
        StringUtils.isBlank(FilenameUtils.getName(newPath))) {
       // We have a directory
-      _path = new Path(_path, FilenameUtils.getName(currPath));
+      dest = new Path(parent, FilenameUtils.getName(currPath));
     } else {
-      _path = new Path(newPath);
+      dest = new Path(newPath);
     }
 
     try {
-      _fs.rename(new Path(currPath), _path);
+      _fs.rename(new Path(currPath), dest);
+      invalidate(new Path(currPath));
+      invalidate(dest);
     } catch(IOException e) {
-      log.error("Could not rename file from "+currPath+" to "+_path.toString()+"; error at "+e.getLocalizedMessage());
+      log.error("Could not rename file from "+currPath+" to "+dest.toString()+"; error at "+e.getLocalizedMessage());
       return null;
     }
 
-    return _path.toString();
+    return dest.toString();
   }
 
   /**
@@ -128,50 +491,56 @@ public class HadoopCacheRegistry extends CacheRegistry {
 	 *   - /b/c/a.txt ->> file
 	 */
   public String moveDirectory(String currPath, String newPath, Boolean mkdir) {
+    Path parent = null;
+    Path dest = null;
+
     if(StringUtils.isBlank(FilenameUtils.getName(newPath))) {
-      _path = new Path(FilenameUtils.getFullPath(FilenameUtils.getFullPathNoEndSeparator(newPath)));
+      parent = new Path(FilenameUtils.getFullPath(FilenameUtils.getFullPathNoEndSeparator(newPath)));
     } else {
-      _path = new Path(FilenameUtils.getFullPath(newPath));
+      parent = new Path(FilenameUtils.getFullPath(newPath));
     }
 
     if(mkdir) {
       Boolean exists = null;
 
       try {
-        exists = _fs.exists(_path);
+        exists = status(parent) != null;
       } catch(IOException e) {
-        log.error("Could not determine if path "+_path.toString()+" exists; error at: "+e.getLocalizedMessage());
+        log.error("Could not determine if path "+parent.toString()+" exists; error at: "+e.getLocalizedMessage());
         return null;
       }
 
       try {
-        _fs.mkdirs(_path);
+        _fs.mkdirs(parent);
+        invalidate(parent);
       } catch(IOException e) {
-        log.error("Could not create file as path "+_path.toString()+"; error at "+e.getLocalizedMessage());
+        log.error("Could not create file as path "+parent.toString()+"; error at "+e.getLocalizedMessage());
         return null;
       }
     }
 
-    _path = new Path(newPath);
+    dest = new Path(newPath);
 
     try {
-      _fs.rename(new Path(currPath), _path);
+      _fs.rename(new Path(currPath), dest);
+      invalidate(new Path(currPath));
+      invalidate(dest);
     } catch(IOException e) {
       log.error("Could not rename file from "+currPath+" to "+newPath+"; error at "+e.getLocalizedMessage());
       return null;
     }
 
-    return _path.toString();
+    return dest.toString();
   }
 
   public CachedFile registerCacheFile(String path, Boolean mkfile) {
-    _path = new Path(path);
+    Path filePath = new Path(path);
 
     if(mkfile) {
       Boolean exists = null;
 
       try {
-        exists = _fs.exists(_path);
+        exists = status(filePath) != null;
       } catch(IOException e) {
         log.error("Could not determine if path "+path+" exists; error at: "+e.getLocalizedMessage());
         return null;
@@ -179,16 +548,17 @@ public class HadoopCacheRegistry extends CacheRegistry {
 
       if(!exists) {
         try {
-          _fs.createNewFile(_path);
+          _fs.createNewFile(filePath);
+          invalidate(filePath);
         } catch(IOException e) {
           log.error("Could not create file as path "+path+"; error at "+e.getLocalizedMessage());
           return null;
         }
       }
 
-      return registerFile(_path);
+      return registerFile(filePath);
     } else {
-      return registerFile(_path);
+      return registerFile(filePath);
     }
   }
 
@@ -203,13 +573,13 @@ public class HadoopCacheRegistry extends CacheRegistry {
   }
 
   public CachedDirectory registerCacheDirectory(String path, Boolean mkdir) {
-    _path = new Path(path);
+    Path dirPath = new Path(path);
 
     if(mkdir) {
       Boolean exists = null;
 
       try {
-        exists = _fs.exists(_path);
+        exists = status(dirPath) != null;
       } catch(IOException e) {
         log.error("Could not determine if path "+path+" exists; error at: "+e.getLocalizedMessage());
         return null;
@@ -217,16 +587,17 @@ public class HadoopCacheRegistry extends CacheRegistry {
 
       if(!exists) {
         try {
-          _fs.mkdirs(_path);
+          _fs.mkdirs(dirPath);
+          invalidate(dirPath);
         } catch(IOException e) {
           log.error("Could not create directory as path "+path+"; error at "+e.getLocalizedMessage());
           return null;
         }
       }
 
-      return registerDirectory(_path);
+      return registerDirectory(dirPath);
     } else {
-      return registerDirectory(_path);
+      return registerDirectory(dirPath);
     }
   }
 
@@ -240,11 +611,104 @@ public class HadoopCacheRegistry extends CacheRegistry {
     return null;
   }
 
-  public class HadoopFile implements CachedFile {
+  /**
+     * List the directory with a single listStatus call. FileStatus carries no file id on this
+     * version of Hadoop, so none is reported.
+     */
+  protected List<PathStatus> statChildren(String path) {
+    FileStatus[] stats = null;
+
+    try {
+      stats = listStatus(new Path(path));
+    } catch(IOException e) {
+      log.error("Could not determine files for directory "+path+"; error at: "+e.getLocalizedMessage());
+      return null;
+    }
+
+    List<PathStatus> children = new ArrayList<PathStatus>(stats.length);
+
+    for(FileStatus stat : stats) {
+      String child = stat.getPath().toString();
+
+      _statuses.put(key(stat.getPath()), stat);
+
+      /** only show full files */
+      if(!child.endsWith(HADOOP_COPYING_SUFFIX)) {
+        children.add(new PathStatus(child, stat.isDirectory(), stat.getModificationTime(), stat.getLen(), null));
+      }
+    }
+
+    return children;
+  }
+
+  /**
+     * List the directory with a single listStatus call and build every child from its FileStatus,
+     * priming the registered directory's own listing along the way
+     */
+  protected Children listChildren(String path, CachedDirectory rd) {
+    FileStatus[] stats = null;
+
+    try {
+      stats = listStatus(new Path(path));
+    } catch(IOException e) {
+      log.error("Could not determine files for directory "+path+"; error at: "+e.getLocalizedMessage());
+      return null;
+    }
+
+    Children children = new Children();
+    List<String> listing = new ArrayList<String>(stats.length);
+
+    for(FileStatus stat : stats) {
+      String child = stat.getPath().toString();
+
+      _statuses.put(key(stat.getPath()), stat);
+
+      /** only show full files */
+      if(child.endsWith(HADOOP_COPYING_SUFFIX)) {
+        continue;
+      }
+
+      listing.add(child);
+
+      try {
+        if(stat.isDirectory()) {
+          children.directories.put(child, new HadoopDirectory(stat, _fs));
+        } else {
+          children.files.put(child, new HadoopFile(stat, _fs));
+        }
+      } catch(IOException e) {
+        log.error("Could not register path "+child+"; error at: "+e.getLocalizedMessage());
+      }
+    }
+
+    CachedDirectory d = unwrap(rd);
+
+    if(d instanceof HadoopDirectory) {
+      ((HadoopDirectory)d).prime(listing);
+    }
+
+    return children;
+  }
+
+  /**
+   * A cached HDFS file. The stream is published through a volatile field so that cached reads do
+   * not lock; opening and closing the descriptor are serialized on the object monitor.
+   *
+   * The status of the contents held is kept apart from the status last seen, as a file rewritten
+   * with identical contents is seen to change without the contents held being replaced.
+   */
+  public class HadoopFile implements CachedFile, Watched {
     private Path _path = null;
     private FileSystem _fs = null;
-    private InputStream _fStream = null;
-    private long _lastModTime;
+    private volatile FSDataInputStream _fStream = null;
+    private volatile long _lastModTime;
+    private volatile long _length;
+    private volatile long _seenModTime;
+    private volatile long _seenLength;
+    private volatile FileChecksum _checksum = null;
+    private volatile long _version = 0;
+    private volatile boolean _watched = false;
+    private volatile boolean _dirty = false;
 
     public HadoopFile(Path path, FileSystem fs) throws IOException {
       _path = path;
@@ -252,67 +716,250 @@ public class HadoopCacheRegistry extends CacheRegistry {
 
 			FileStatus stat = null;
       try {
-        stat = _fs.getFileStatus(_path);
+        stat = requireStatus(_path);
       } catch(IOException e) {
 				log.warn("Could not get FileStatus object from path "+_path);
 				throw e;
       }
 
+      init(stat);
+    }
+
+    /**
+     * Build the file from a status already at hand, such as one returned by a directory listing
+     */
+    public HadoopFile(FileStatus stat, FileSystem fs) throws IOException {
+      _path = stat.getPath();
+      _fs = fs;
+
+      init(stat);
+    }
+
+    private void init(FileStatus stat) throws IOException {
       if(stat.isDirectory()) {
-        throw new IOException("Attempted to create a CachedFile, but was given a directory path at "+path+".");
+        throw new IOException("Attempted to create a CachedFile, but was given a directory path at "+_path+".");
       }
 
-      _lastModTime = stat.getModificationTime();
+      _lastModTime = _seenModTime = stat.getModificationTime();
+      _length = _seenLength = stat.getLen();
     }
 
+    /**
+     * When watched, events only prompt a comparison such that events which do not change the
+     * fingerprint, e.g. permission changes or identical rewrites, are not reported as stale
+     */
     public boolean isStale() {
+      if(_watched) {
+        if(!_dirty) {
+          return false;
+        }
+
+        // Clear first such that an event arriving during the comparison is not lost
+        _dirty = false;
+      }
+
+      boolean changed = true;
+
 			FileStatus stat = null;
       try {
-        stat = _fs.getFileStatus(_path);
+        stat = requireStatus(_path);
+        changed = isChanged(stat);
       } catch(IOException e) {
 				log.error("Could not get FileStatus object from path "+_path);
-				return true;
       }
 
-      if(_lastModTime != stat.getModificationTime()) {
-        return true;
-      } else {
-        return false;
+      if(changed && _watched) {
+        _dirty = true;
       }
+
+      return changed;
+    }
+
+    /**
+     * Compare against a status fetched elsewhere, e.g. by a directory listing, rather than asking
+     * the FileSystem. Watched files are answered from their events as usual.
+     *
+     * @param stat the status of the file, or null if it no longer exists
+     */
+    boolean isStale(FileStatus stat) {
+      if(_watched) {
+        return isStale();
+      }
+
+      return stat == null || isChanged(stat);
     }
 
     public void setStaleFlag() {
+      // Clear first such that an event arriving while the flag is set is not lost
+      _dirty = false;
+
 			FileStatus stat = null;
       try {
-        stat = _fs.getFileStatus(_path);
+        stat = requireStatus(_path);
       } catch(IOException e) {
 				log.error("Could not get FileStatus object from path "+_path);
 				return;
       }
-      _lastModTime = stat.getModificationTime();
+      _lastModTime = _seenModTime = stat.getModificationTime();
+      _length = _seenLength = stat.getLen();
+      _checksum = getFingerprint() == Fingerprint.CHECKSUM ? checksum() : null;
+      _version++;
     }
 
-    public InputStream cachedInputStream() {
-      if(_fStream == null) {
-        log.warn("Attempting to retrieve a cached input stream when none was opened; will attempt to open.");
+    public void startWatching() {
+      _watched = true;
 
-        try {
-          _fStream = _fs.open(_path);
-        } catch(IOException e) {
-          log.error("Could not open file "+_path+"; error at: "+e.getLocalizedMessage());
-          _fStream = null;
+      try {
+        FileStatus stat = requireStatus(_path);
+
+        if(_seenModTime != stat.getModificationTime() || _seenLength != stat.getLen()) {
+          _dirty = true;
         }
+      } catch(IOException e) {
+        _dirty = true;
       }
+    }
 
-      return _fStream;
+    /**
+     * Compare the status against the one last seen under the registry's fingerprint
+     */
+    private boolean isChanged(FileStatus stat) {
+      Fingerprint fingerprint = getFingerprint();
+      boolean changed = _seenModTime != stat.getModificationTime()
+        || (fingerprint != Fingerprint.MODIFICATION_TIME && _seenLength != stat.getLen());
+
+      if(fingerprint != Fingerprint.CHECKSUM) {
+        return changed;
+      }
+
+      if(!changed) {
+        if(_checksum == null) {
+          holdChecksum(stat);
+        }
+
+        return false;
+      }
+
+      return !isRewrite(stat);
+    }
+
+    /**
+     * Record the checksum of the contents held, unless the file has changed since they were read
+     */
+    private synchronized void holdChecksum(FileStatus stat) {
+      if(_checksum == null && _lastModTime == stat.getModificationTime() && _length == stat.getLen()) {
+        _checksum = checksum();
+      }
+    }
+
+    /**
+     * Confirm whether a change in status left the contents identical to those held. Should it
+     * have, the new status is adopted as seen and the cached stream, which may reference blocks of
+     * a replaced file, is reopened, while the version and anything read at it are kept.
+     *
+     * @return true if the contents are identical to those held
+     */
+    private synchronized boolean isRewrite(FileStatus stat) {
+      if(_seenModTime == stat.getModificationTime() && _seenLength == stat.getLen()) {
+        // Confirmed by another thread while this one waited
+        return true;
+      }
+
+      FileChecksum held = _checksum;
+
+      if(held == null || _length != stat.getLen() || !held.equals(checksum())) {
+        return false;
+      }
+
+      log.debug("File "+_path+" was rewritten with identical contents; keeping the contents held.");
+
+      _seenModTime = stat.getModificationTime();
+      _seenLength = stat.getLen();
+
+      if(_fStream != null) {
+        close();
+        open();
+      }
+
+      return true;
+    }
+
+    /**
+     * @return the checksum of the file's contents, else null if the FileSystem provides none
+     */
+    private FileChecksum checksum() {
+      try {
+        return fileChecksum(_path);
+      } catch(IOException e) {
+        log.error("Could not get the checksum of file "+_path+"; error at: "+e.getLocalizedMessage());
+        return null;
+      }
+    }
+
+    public void stopWatching() {
+      _watched = false;
+    }
+
+    public void markStale() {
+      _statuses.invalidate(key(_path));
+      _dirty = true;
+    }
+
+    public Path getPath() {
+      return _path;
+    }
+
+
+    public long lastModified() {
+      return _lastModTime;
+    }
+
+    public long length() {
+      return _length;
+    }
+
+    public long version() {
+      return _version;
+    }
+
+    public InputStream newInputStream() {
+      try {
+        return openContents(0);
+      } catch(IOException e) {
+        log.error("Could not open file "+_path+"; error at: "+e.getLocalizedMessage());
+        return null;
+      }
     }
 
-    public InputStream open() {
+    public InputStream cachedInputStream() {
+      FSDataInputStream fStream = _fStream;
+
+      if(fStream != null) {
+        return fStream;
+      }
+
+      synchronized(this) {
+        if(_fStream == null) {
+          log.debug("Attempting to retrieve a cached input stream when none was opened; will attempt to open.");
+
+          try {
+            _fStream = openContents(0);
+          } catch(IOException e) {
+            log.error("Could not open file "+_path+"; error at: "+e.getLocalizedMessage());
+            _fStream = null;
+          }
+        }
+
+        return _fStream;
+      }
+    }
+
+    public synchronized InputStream open() {
       if(_fStream != null) {
         log.warn("Attempting to open a previously opened file with name "+_path+"; should be using the cachedInputStream method.");
       } else {
         try {
-          _fStream = _fs.open(_path);
+          _fStream = openContents(0);
         } catch(IOException e) {
           log.error("Could not open file "+_path+"; error at: "+e.getLocalizedMessage());
           _fStream = null;
@@ -322,12 +969,12 @@ public class HadoopCacheRegistry extends CacheRegistry {
       return _fStream;
     }
 
-    public InputStream open(int bufferSize) {
+    public synchronized InputStream open(int bufferSize) {
       if(_fStream != null) {
         log.warn("Attempting to open a previously opened file with name "+_path+"; should be using the cachedInputStream method.");
       } else {
         try {
-          _fStream = _fs.open(_path, bufferSize);
+          _fStream = openContents(bufferSize);
         } catch(IOException e) {
           log.error("Could not open file "+_path+" with buffer size "+bufferSize+"; error at: "+e.getLocalizedMessage());
           _fStream = null;
@@ -337,7 +984,7 @@ public class HadoopCacheRegistry extends CacheRegistry {
       return _fStream;
     }
 
-    public void close() {
+    public synchronized void close() {
       if(_fStream == null) {
         log.warn("Attempting to close a nonexistent file descriptor with name "+_path);
       } else {
@@ -350,12 +997,83 @@ public class HadoopCacheRegistry extends CacheRegistry {
         _fStream = null;
       }
     }
+
+    /**
+     * Positioned read through the cached FSDataInputStream, opening it if needed
+     */
+    public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+      return positionedStream().read(position, buffer, offset, length);
+    }
+
+    public int read(long position, ByteBuffer dst) throws IOException {
+      int n = -1;
+
+      if(dst.hasArray()) {
+        n = read(position, dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+
+        if(n > 0) {
+          dst.position(dst.position() + n);
+        }
+      } else {
+        byte[] buffer = new byte[dst.remaining()];
+
+        n = read(position, buffer, 0, buffer.length);
+
+        if(n > 0) {
+          dst.put(buffer, 0, n);
+        }
+      }
+
+      return n;
+    }
+
+    public void readFully(long position, byte[] buffer, int offset, int length) throws IOException {
+      positionedStream().readFully(position, buffer, offset, length);
+    }
+
+    public FileHandle openHandle() throws IOException {
+      final FSDataInputStream fStream = openContents(0);
+
+      return new FileHandle() {
+        public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+          return fStream.read(position, buffer, offset, length);
+        }
+
+        public void close() throws IOException {
+          fStream.close();
+        }
+      };
+    }
+
+    /**
+     * Open the contents held, as of the status they were read at, through the local tier if enabled
+     */
+    private FSDataInputStream openContents(int bufferSize) throws IOException {
+      return HadoopCacheRegistry.this.openContents(_path, _lastModTime, _length, bufferSize);
+    }
+
+    private FSDataInputStream positionedStream() throws IOException {
+      FSDataInputStream fStream = (FSDataInputStream)cachedInputStream();
+
+      if(fStream == null) {
+        throw new IOException("Could not open file "+_path+" for positioned reads.");
+      }
+
+      return fStream;
+    }
   }
 
-  public class HadoopDirectory implements CachedDirectory {
+  /**
+   * A cached HDFS directory. The listing is built on first use and then returned without
+   * touching the filesystem until the stale flag is set.
+   */
+  public class HadoopDirectory implements CachedDirectory, Watched {
     private Path _path = null;
     private FileSystem _fs = null;
-    private long _lastModTime;
+    private volatile long _lastModTime;
+    private volatile List<String> _listing = null;
+    private volatile boolean _watched = false;
+    private volatile boolean _dirty = false;
 
     public HadoopDirectory(Path path, FileSystem fs) throws IOException {
       _path = path;
@@ -363,44 +1081,90 @@ public class HadoopCacheRegistry extends CacheRegistry {
 
 			FileStatus stat = null;
       try {
-        stat = _fs.getFileStatus(_path);
+        stat = requireStatus(_path);
       } catch(IOException e) {
 				log.error("Could not get FileStatus object from file "+_path);
 				throw e;
       }
 
+      init(stat);
+    }
+
+    /**
+     * Build the directory from a status already at hand, such as one returned by a listing of
+     * its parent
+     */
+    public HadoopDirectory(FileStatus stat, FileSystem fs) throws IOException {
+      _path = stat.getPath();
+      _fs = fs;
+
+      init(stat);
+    }
+
+    private void init(FileStatus stat) throws IOException {
       if(!stat.isDirectory()) {
-        throw new IOException("Attempted to create a CachedDirectory, but was given a file path at "+path+".");
+        throw new IOException("Attempted to create a CachedDirectory, but was given a file path at "+_path+".");
       }
 
       _lastModTime = stat.getModificationTime();
     }
 
+    /**
+     * Adopt a listing taken after the directory's status was read, unless one is already held
+     */
+    synchronized void prime(List<String> listing) {
+      if(_listing == null) {
+        _listing = Collections.unmodifiableList(listing);
+      }
+    }
+
+    /**
+     * @return an unmodifiable listing of the directory as of the last time the stale flag was set
+     */
     public List<String> list() {
-      List<String> paths = new ArrayList<String>();
-      FileStatus[] files = null;
+      List<String> listing = _listing;
 
-      try {
-        files = _fs.listStatus(_path);
-      } catch(IOException e) {
-        log.error("Could not determine files for directory "+_path+"; error at: "+e.getLocalizedMessage());
+      if(listing != null) {
+        return listing;
       }
 
-      for(FileStatus f : files) {
-				String pathString = f.getPath().toString();
-				/** only show full files */
-				if(!pathString.endsWith(HADOOP_COPYING_SUFFIX)){
-					paths.add(f.getPath().toString());
-				}
-      }
+      synchronized(this) {
+        if(_listing != null) {
+          return _listing;
+        }
+
+        List<String> paths = new ArrayList<String>();
+        FileStatus[] files = null;
+
+        try {
+          files = listStatus(_path);
+        } catch(IOException e) {
+          log.error("Could not determine files for directory "+_path+"; error at: "+e.getLocalizedMessage());
+          return Collections.<String>emptyList();
+        }
+
+        for(FileStatus f : files) {
+          String pathString = f.getPath().toString();
+          /** only show full files */
+          if(!pathString.endsWith(HADOOP_COPYING_SUFFIX)){
+            paths.add(f.getPath().toString());
+          }
+        }
 
-      return paths;
+        _listing = Collections.unmodifiableList(paths);
+
+        return _listing;
+      }
     }
 
     public boolean isStale() {
+      if(_watched) {
+        return _dirty;
+      }
+
 			FileStatus stat = null;
       try {
-        stat = _fs.getFileStatus(_path);
+        stat = requireStatus(_path);
       } catch(IOException e) {
 				log.error("Could not get FileStatus object from file "+_path);
 				return true;
@@ -414,15 +1178,46 @@ public class HadoopCacheRegistry extends CacheRegistry {
     }
 
     public void setStaleFlag() {
+      // Clear first such that an event arriving while the flag is set is not lost
+      _dirty = false;
+
 			FileStatus stat = null;
       try {
-        stat = _fs.getFileStatus(_path);
+        stat = requireStatus(_path);
       } catch(IOException e) {
 				log.error("Could not get FileStatus object from file "+_path);
 				return;
       }
 
-      _lastModTime = stat.getModificationTime();
+      synchronized(this) {
+        _lastModTime = stat.getModificationTime();
+        _listing = null;
+      }
+    }
+
+    public Path getPath() {
+      return _path;
+    }
+
+    public void startWatching() {
+      _watched = true;
+
+      try {
+        if(_lastModTime != requireStatus(_path).getModificationTime()) {
+          _dirty = true;
+        }
+      } catch(IOException e) {
+        _dirty = true;
+      }
+    }
+
+    public void stopWatching() {
+      _watched = false;
+    }
+
+    public void markStale() {
+      _statuses.invalidate(key(_path));
+      _dirty = true;
     }
   }
 }
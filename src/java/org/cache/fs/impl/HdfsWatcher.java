@@ -0,0 +1,235 @@
+package org.cache.fs.impl;
+
+import java.io.IOException;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSInotifyEventInputStream;
+import org.apache.hadoop.hdfs.client.HdfsAdmin;
+import org.apache.hadoop.hdfs.inotify.Event;
+import org.apache.hadoop.hdfs.inotify.EventBatch;
+import org.apache.hadoop.hdfs.inotify.MissingEventsException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Tails the HDFS inotify event stream and marks the matching registered entries stale as events
+ * arrive, such that staleness checks need not call the NameNode.
+ *
+ * Files are matched on their own path and directories on the paths of their direct children.
+ * A directory renamed or deleted is reported as a single event for the directory alone, so the
+ * entries beneath it are marked stale too. Should the stream fail or report missed events every
+ * entry falls back to polling.
+ */
+class HdfsWatcher implements Runnable {
+  static Logger log = Logger.getLogger(HdfsWatcher.class);
+
+  private static final long POLL_INTERVAL_MS = 1000;
+
+  private final FileSystem _fs;
+  private final DFSInotifyEventInputStream _events;
+  private final ConcurrentNavigableMap<String,Set<Watched>> _files;
+  private final ConcurrentNavigableMap<String,Set<Watched>> _directories;
+  private final Thread _thread;
+  private volatile boolean _running = true;
+
+  /**
+     * @throws IOException if the FileSystem does not support inotify or the caller is not
+     *         permitted to read the event stream
+     */
+  public HdfsWatcher(FileSystem fs) throws IOException {
+    _fs = fs;
+    _events = new HdfsAdmin(fs.getUri(), fs.getConf()).getInotifyEventStream();
+    _files = new ConcurrentSkipListMap<String,Set<Watched>>();
+    _directories = new ConcurrentSkipListMap<String,Set<Watched>>();
+    _thread = new Thread(this, "cache-registry-inotify");
+    _thread.setDaemon(true);
+    _thread.start();
+  }
+
+  /**
+     * Watch a registered file for creation, modification, rename, or deletion
+     */
+  public void watchFile(Path path, Watched entry) {
+    add(_files, key(path), entry);
+    start(entry);
+  }
+
+  /**
+     * Watch a registered directory for entries being created, renamed, or deleted within it
+     */
+  public void watchDirectory(Path path, Watched entry) {
+    add(_directories, key(path), entry);
+    start(entry);
+  }
+
+  /**
+     * Stop delivering events to any entries registered for the path
+     */
+  public void unwatch(Path path) {
+    String key = key(path);
+
+    _files.remove(key);
+    _directories.remove(key);
+  }
+
+  /**
+     * Stop tailing the event stream; every watched entry falls back to polling
+     */
+  public void close() {
+    _running = false;
+    _thread.interrupt();
+    stopWatching();
+  }
+
+  public void run() {
+    while(_running) {
+      EventBatch batch = null;
+
+      try {
+        batch = _events.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      } catch(InterruptedException e) {
+        break;
+      } catch(MissingEventsException e) {
+        log.error("Missed inotify events; falling back to polling; error at: "+e.getLocalizedMessage());
+        break;
+      } catch(IOException e) {
+        log.error("Could not read the inotify event stream; falling back to polling; error at: "+e.getLocalizedMessage());
+        break;
+      }
+
+      if(batch == null) {
+        continue;
+      }
+
+      for(Event event : batch.getEvents()) {
+        switch(event.getEventType()) {
+          case CREATE:
+            changed(((Event.CreateEvent)event).getPath(), true);
+            break;
+          case CLOSE:
+            changed(((Event.CloseEvent)event).getPath(), false);
+            break;
+          case APPEND:
+            changed(((Event.AppendEvent)event).getPath(), false);
+            break;
+          case METADATA:
+            changed(((Event.MetadataUpdateEvent)event).getPath(), false);
+            break;
+          case RENAME:
+            removed(((Event.RenameEvent)event).getSrcPath());
+            removed(((Event.RenameEvent)event).getDstPath());
+            break;
+          case UNLINK:
+            removed(((Event.UnlinkEvent)event).getPath());
+            break;
+          default:
+            break;
+        }
+      }
+    }
+
+    _running = false;
+    stopWatching();
+  }
+
+  /**
+     * Start answering staleness from events unless the stream has already stopped, in which case
+     * the entry keeps polling
+     */
+  private void start(Watched entry) {
+    entry.startWatching();
+
+    if(!_running) {
+      entry.stopWatching();
+    }
+  }
+
+  /**
+     * Mark the entries for the path stale, along with its parent directory when an entry was
+     * added to or removed from it
+     */
+  private void changed(String path, boolean parentChanged) {
+    markStale(_files.get(path));
+    markStale(_directories.get(path));
+
+    if(parentChanged) {
+      Path parent = new Path(path).getParent();
+
+      if(parent != null) {
+        markStale(_directories.get(parent.toUri().getPath()));
+      }
+    }
+  }
+
+  /**
+     * Mark the entries for a path renamed or deleted stale, along with its parent directory and
+     * every entry beneath it should it be a directory
+     */
+  private void removed(String path) {
+    changed(path, true);
+
+    // Keys sharing the prefix path + "/" sort between it and path + "0", '0' following '/'
+    String below = path.endsWith("/") ? path : path+"/";
+    String end = below.substring(0, below.length() - 1)+"0";
+
+    markStale(_files.subMap(below, end).values());
+    markStale(_directories.subMap(below, end).values());
+  }
+
+  private void markStale(Iterable<Set<Watched>> entries) {
+    for(Set<Watched> set : entries) {
+      markStale(set);
+    }
+  }
+
+  private void markStale(Set<Watched> entries) {
+    if(entries != null) {
+      for(Watched entry : entries) {
+        entry.markStale();
+      }
+    }
+  }
+
+  private void stopWatching() {
+    for(Set<Watched> entries : _files.values()) {
+      for(Watched entry : entries) {
+        entry.stopWatching();
+      }
+    }
+
+    for(Set<Watched> entries : _directories.values()) {
+      for(Watched entry : entries) {
+        entry.stopWatching();
+      }
+    }
+  }
+
+  /**
+     * @return the scheme-less absolute path as reported by inotify events
+     */
+  private String key(Path path) {
+    return _fs.makeQualified(path).toUri().getPath();
+  }
+
+  private static void add(ConcurrentMap<String,Set<Watched>> entries, String key, Watched entry) {
+    Set<Watched> set = entries.get(key);
+
+    if(set == null) {
+      Set<Watched> prev = entries.putIfAbsent(key, set = new CopyOnWriteArraySet<Watched>());
+
+      if(prev != null) {
+        set = prev;
+      }
+    }
+
+    set.add(entry);
+  }
+}
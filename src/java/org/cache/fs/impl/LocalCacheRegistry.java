@@ -1,13 +1,27 @@
 package org.cache.fs.impl;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -15,31 +29,281 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 
 import org.cache.fs.CacheRegistry;
+import org.cache.fs.Fingerprint;
 
 import org.cache.fs.sys.CachedFile;
 import org.cache.fs.sys.CachedDirectory;
+import org.cache.fs.sys.FileHandle;
+import org.cache.fs.sys.PathStatus;
 
+/**
+ * A CacheRegistry backed by the local filesystem.
+ *
+ * The registry keeps no per-call state on the instance, so a single registry may be shared
+ * freely between threads.
+ *
+ * When mapped mode is enabled getByteBuffer returns a read-only memory mapping of the file
+ * rather than a copy of its contents on the heap.
+ *
+ * When watch mode is enabled registered paths are tracked through a WatchService and staleness
+ * checks read a flag set by filesystem events instead of calling stat on every check.
+ *
+ * Once a status TTL is set, every attribute read, including the absence of a path, is held for it
+ * such that one registry operation costs at most one stat.
+ */
 public class LocalCacheRegistry extends CacheRegistry {
   static Logger log = Logger.getLogger(LocalCacheRegistry.class);
 
-  private File _path = null;
+  /** Largest region of a file mapped by a single buffer */
+  public static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+  /** Default time, in milliseconds, the attributes read for a path remain trusted; none are held */
+  public static final long DEFAULT_STATUS_TTL = 0;
+
+  private volatile boolean _mapped = false;
+  private volatile LocalWatcher _watcher = null;
+  private final StatusCache<BasicFileAttributes> _statuses;
+  private final StatusCache.Loader<BasicFileAttributes> _statusLoader;
+
+  public LocalCacheRegistry() {
+    _statuses = new StatusCache<BasicFileAttributes>(DEFAULT_STATUS_TTL);
+    _statusLoader = new StatusCache.Loader<BasicFileAttributes>() {
+      public BasicFileAttributes load(String key) throws IOException {
+        try {
+          long start = System.nanoTime();
+
+          try {
+            return Files.readAttributes(new File(key).toPath(), BasicFileAttributes.class);
+          } finally {
+            recordCall("stat", start);
+          }
+        } catch(NoSuchFileException e) {
+          return null;
+        }
+      }
+    };
+  }
+
+  /**
+     * Set how long, in milliseconds, the attributes read for a path are trusted before staleness
+     * and type checks stat the path again, or zero to always stat
+     */
+  public void setStatusTtl(long statusTtl) {
+    _statuses.setTtl(statusTtl);
+  }
+
+  /**
+     * @return the attributes of the path, held or read, else null if the path does not exist
+     */
+  private BasicFileAttributes attributes(File path) throws IOException {
+    return _statuses.get(path.getAbsolutePath(), _statusLoader);
+  }
+
+  /**
+     * Drop the attributes held for a path changed through the registry: the path itself,
+     * everything beneath it, and its ancestors, which may have been created or gained or lost an
+     * entry
+     */
+  private void invalidate(File path) {
+    File absolute = path.getAbsoluteFile();
+
+    _statuses.invalidateTree(absolute.getPath(), File.separatorChar);
+
+    for(File f = absolute.getParentFile(); f != null; f = f.getParentFile()) {
+      _statuses.invalidate(f.getPath());
+    }
+  }
+
+  private InputStream openStream(File path) throws IOException {
+    long start = System.nanoTime();
+
+    try {
+      return new FileInputStream(path);
+    } finally {
+      recordCall("open", start);
+    }
+  }
+
+  private FileChannel openChannel(File path) throws IOException {
+    long start = System.nanoTime();
+
+    try {
+      return new RandomAccessFile(path, "r").getChannel();
+    } finally {
+      recordCall("open", start);
+    }
+  }
+
+  private long computeChecksum(File path) throws IOException {
+    long start = System.nanoTime();
+
+    try {
+      return Checksums.checksum(path);
+    } finally {
+      recordCall("checksum", start);
+    }
+  }
+
+  /**
+     * @return the modification time of the path, or zero if it does not exist or could not be read
+     */
+  private long lastModified(File path) {
+    try {
+      BasicFileAttributes attrs = attributes(path);
+      return attrs == null ? 0 : attrs.lastModifiedTime().toMillis();
+    } catch(IOException e) {
+      return 0;
+    }
+  }
+
+  /**
+     * Set whether registered paths are watched for changes through a WatchService
+     *
+     * Enabling watch mode also watches every path already registered. Disabling it, or any
+     * overflow of watch events, returns the affected paths to polling.
+     */
+  public synchronized void setWatchMode(boolean watch) {
+    if(watch && _watcher == null) {
+      try {
+        _watcher = new LocalWatcher();
+      } catch(IOException e) {
+        log.error("Could not create a WatchService; continuing to poll for changes; error at: "+e.getLocalizedMessage());
+        return;
+      }
+
+      for(CachedFile rf : registeredFiles().values()) {
+        LocalFile lf = (LocalFile)rf;
+        _watcher.watchFile(lf._path, lf);
+      }
+
+      for(CachedDirectory rd : registeredDirectories().values()) {
+        CachedDirectory d = unwrap(rd);
+
+        if(d instanceof LocalDirectory) {
+          _watcher.watchDirectory(((LocalDirectory)d)._path, (LocalDirectory)d);
+        }
+      }
+    } else if(!watch && _watcher != null) {
+      _watcher.close();
+      _watcher = null;
+    }
+  }
+
+  /**
+     * Set whether getByteBuffer should return memory mapped views of files instead of heap copies
+     */
+  public void setMappedMode(boolean mapped) {
+    _mapped = mapped;
+  }
+
+  /**
+     * Return the file contents, as a read-only memory mapping when mapped mode is enabled
+     *
+     * The mapping is created once per file and only recreated after the file is found to be
+     * stale. Each call returns an independent view with its own position.
+     *
+     * @return a read-only ByteBuffer over the file contents, else null if the file could not be
+     *         read or is too large to fit a single buffer; see getMappedSegments
+     */
+  public ByteBuffer getByteBuffer(String path) {
+    if(!_mapped) {
+      return super.getByteBuffer(path);
+    }
+
+    if(StringUtils.isBlank(path)) {
+      log.warn("Provided path of either only whitespace, empty, or null into method getByteBuffer().");
+      return null;
+    }
+
+    CachedFile rf = getCachedFile(path);
+
+    if(rf == null) {
+      return null;
+    }
+
+    return ((LocalFile)rf).mappedBuffer();
+  }
+
+  /**
+     * Return read-only memory mapped views over consecutive regions of the file, each at most
+     * MAX_SEGMENT_SIZE bytes, such that files over 2GB may be mapped in full
+     *
+     * @return the mapped segments in file order, else null if the file could not be mapped
+     */
+  public List<ByteBuffer> getMappedSegments(String path) {
+    if(StringUtils.isBlank(path)) {
+      log.warn("Provided path of either only whitespace, empty, or null into method getMappedSegments().");
+      return null;
+    }
 
-  public LocalCacheRegistry() { }
+    CachedFile rf = getCachedFile(path);
+
+    if(rf == null) {
+      return null;
+    }
+
+    return ((LocalFile)rf).mappedSegments();
+  }
 
   public void close() {
+    setWatchMode(false);
+
+    return;
+  }
+
+  /**
+     * Watch each newly registered path while watch mode is enabled
+     */
+  protected void registered(String path, Object entry) {
+    LocalWatcher watcher = _watcher;
+
+    if(watcher == null) {
+      return;
+    }
+
+    if(entry instanceof LocalFile) {
+      watcher.watchFile(((LocalFile)entry)._path, (LocalFile)entry);
+    } else if(entry instanceof LocalDirectory) {
+      watcher.watchDirectory(((LocalDirectory)entry)._path, (LocalDirectory)entry);
+    }
+  }
+
+  protected void unregistered(String path) {
+    LocalWatcher watcher = _watcher;
+
+    if(watcher != null) {
+      watcher.unwatch(new File(path));
+    }
+
     return;
   }
 
   public Boolean isFile(String path) {
-    return new File(path).isFile();
+    try {
+      BasicFileAttributes attrs = attributes(new File(path));
+      return attrs != null && attrs.isRegularFile();
+    } catch(IOException e) {
+      log.warn("Could not read the attributes of path "+path+"; "+e.getLocalizedMessage());
+      return false;
+    }
   }
 
   public Boolean isDirectory(String path) {
-    return new File(path).isDirectory();
+    try {
+      BasicFileAttributes attrs = attributes(new File(path));
+      return attrs != null && attrs.isDirectory();
+    } catch(IOException e) {
+      log.warn("Could not read the attributes of path "+path+"; "+e.getLocalizedMessage());
+      return false;
+    }
   }
 
   public Boolean deletePath(String path) {
-    return new File(path).delete();
+    try {
+      return new File(path).delete();
+    } finally {
+      invalidate(new File(path));
+    }
   }
 
   /**
@@ -50,28 +314,32 @@ public class LocalCacheRegistry extends CacheRegistry {
      *   - /b/c/a.txt ->> file
      */
   public String moveFile(String currPath, String newPath, Boolean mkfile) {
-    _path = new File(FilenameUtils.getFullPath(newPath));
+    File parent = new File(FilenameUtils.getFullPath(newPath));
+    File dest = null;
 
-    if(mkfile && !_path.exists()) {
-      _path.mkdirs();
+    if(mkfile && !parent.exists()) {
+      parent.mkdirs();
+      invalidate(parent);
     }
 
     if(isDirectory(newPath) ||
        StringUtils.isBlank(FilenameUtils.getName(newPath))) {
       // We have a directory
-      _path = new File(_path, FilenameUtils.getName(currPath));
+      dest = new File(parent, FilenameUtils.getName(currPath));
     } else {
-      _path = new File(newPath);
+      dest = new File(newPath);
     }
 
     try {
-      (new File(currPath)).renameTo(_path);
+      (new File(currPath)).renameTo(dest);
+      invalidate(new File(currPath));
+      invalidate(dest);
     } catch(Exception e) {
       log.error("Could not rename file from "+currPath+" to "+newPath+"; error at "+e.getLocalizedMessage());
       return null;
     }
 
-    return _path.toString();
+    return dest.toString();
   }
 
   /**
@@ -82,48 +350,56 @@ public class LocalCacheRegistry extends CacheRegistry {
      *   - /b/c/a.txt ->> file
      */
   public String moveDirectory(String currPath, String newPath, Boolean mkdir) {
+    File parent = null;
+    File dest = null;
+
     if(StringUtils.isBlank(FilenameUtils.getName(newPath))) {
-      _path = new File(FilenameUtils.getFullPath(FilenameUtils.getFullPathNoEndSeparator(newPath)));
+      parent = new File(FilenameUtils.getFullPath(FilenameUtils.getFullPathNoEndSeparator(newPath)));
     } else {
-      _path = new File(FilenameUtils.getFullPath(newPath));
+      parent = new File(FilenameUtils.getFullPath(newPath));
     }
 
-    if(mkdir && !_path.exists()) {
-      _path.mkdirs();
+    if(mkdir && !parent.exists()) {
+      parent.mkdirs();
+      invalidate(parent);
     }
 
-    _path = new File(newPath);
+    dest = new File(newPath);
 
     try {
-      (new File(currPath)).renameTo(_path);
+      (new File(currPath)).renameTo(dest);
+      invalidate(new File(currPath));
+      invalidate(dest);
     } catch(Exception e) {
       log.error("Could not rename file from "+currPath+" to "+newPath+"; error at "+e.getLocalizedMessage());
       return null;
     }
 
-    return _path.toString();
+    return dest.toString();
   }
 
   public CachedFile registerCacheFile(String path, Boolean mkfile) {
-    _path = new File(path);
+    File filePath = new File(path);
 
     if(mkfile) {
-      if(!_path.getParentFile().exists()) {
-        _path.getParentFile().mkdirs();
+      if(!filePath.getParentFile().exists()) {
+        filePath.getParentFile().mkdirs();
+        invalidate(filePath.getParentFile());
       }
 
-      if(!_path.exists()) {
+      if(!filePath.exists()) {
         try {
-          _path.createNewFile();
+          filePath.createNewFile();
+          invalidate(filePath);
         } catch(IOException e) {
           log.error("Could not create file as path "+path+"; error at "+e.getLocalizedMessage());
           return null;
         }
       }
 
-      return registerFile(_path);
+      return registerFile(filePath);
     } else {
-      return registerFile(_path);
+      return registerFile(filePath);
     }
   }
 
@@ -138,13 +414,14 @@ public class LocalCacheRegistry extends CacheRegistry {
   }
 
   public CachedDirectory registerCacheDirectory(String path, Boolean mkdir) {
-    _path = new File(path);
+    File dirPath = new File(path);
 
-    if(mkdir && !_path.exists()) {
-      _path.mkdirs();
+    if(mkdir && !dirPath.exists()) {
+      dirPath.mkdirs();
+      invalidate(dirPath);
     }
 
-    return registerDirectory(_path);
+    return registerDirectory(dirPath);
   }
 
   private CachedDirectory registerDirectory(File path) {
@@ -157,54 +434,345 @@ public class LocalCacheRegistry extends CacheRegistry {
     return null;
   }
 
-  public class LocalFile implements CachedFile {
+  /**
+     * List the directory with a single directory stream, reading each child's attributes once.
+     * The file key, where the platform provides one, identifies the inode.
+     */
+  protected List<PathStatus> statChildren(String path) {
+    File dir = new File(path);
+    List<PathStatus> children = new ArrayList<PathStatus>();
+
+    long start = System.nanoTime();
+
+    try(DirectoryStream<Path> entries = Files.newDirectoryStream(dir.toPath())) {
+      for(Path entry : entries) {
+        String child = dir.getAbsolutePath().concat(File.separator).concat(entry.getFileName().toString());
+
+        try {
+          BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+
+          _statuses.put(child, attrs);
+
+          children.add(new PathStatus(child, attrs.isDirectory(), attrs.lastModifiedTime().toMillis(), attrs.size(), attrs.fileKey()));
+        } catch(IOException e) {
+          log.debug("Could not read attributes of path "+child+"; it was likely removed; error at: "+e.getLocalizedMessage());
+        }
+      }
+    } catch(IOException e) {
+      log.error("Could not determine files for directory "+path+"; error at: "+e.getLocalizedMessage());
+      return null;
+    } finally {
+      recordCall("list", start);
+    }
+
+    return children;
+  }
+
+  /**
+     * List the directory with a single directory stream and build every child from one read of
+     * its attributes, priming the registered directory's own listing along the way
+     */
+  protected Children listChildren(String path, CachedDirectory rd) {
+    File dir = new File(path);
+    Children children = new Children();
+    List<String> listing = new ArrayList<String>();
+
+    long start = System.nanoTime();
+
+    try(DirectoryStream<Path> entries = Files.newDirectoryStream(dir.toPath())) {
+      for(Path entry : entries) {
+        String child = dir.getAbsolutePath().concat(File.separator).concat(entry.getFileName().toString());
+
+        listing.add(child);
+
+        try {
+          BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+
+          _statuses.put(child, attrs);
+
+          if(attrs.isDirectory()) {
+            children.directories.put(child, new LocalDirectory(new File(child), attrs));
+          } else if(attrs.isRegularFile()) {
+            children.files.put(child, new LocalFile(new File(child), attrs));
+          }
+        } catch(IOException e) {
+          log.error("Could not register path "+child+"; error at: "+e.getLocalizedMessage());
+        }
+      }
+    } catch(IOException e) {
+      log.error("Could not determine files for directory "+path+"; error at: "+e.getLocalizedMessage());
+      return null;
+    } finally {
+      recordCall("list", start);
+    }
+
+    CachedDirectory d = unwrap(rd);
+
+    if(d instanceof LocalDirectory) {
+      ((LocalDirectory)d).prime(listing);
+    }
+
+    return children;
+  }
+
+  /**
+   * A cached local file. The stream is published through a volatile field so that cached reads
+   * do not lock; opening and closing the descriptor are serialized on the object monitor.
+   *
+   * The status of the contents held is kept apart from the status last seen, as a file rewritten
+   * with identical contents is seen to change without the contents held being replaced.
+   */
+  public class LocalFile implements CachedFile, Watched {
     private File _path = null;
-    private InputStream _fStream = null;
-    private long _lastModTime;
+    private volatile InputStream _fStream = null;
+    private volatile long _lastModTime;
+    private volatile long _length;
+    private volatile PathStatus _seen = null;
+    private volatile Long _checksum = null;
+    private volatile long _version = 0;
+    private volatile boolean _watched = false;
+    private volatile boolean _dirty = false;
+    private volatile FileChannel _channel = null;
+    private volatile List<MappedByteBuffer> _segments = null;
+    private volatile long _mappedVersion;
 
     public LocalFile(File path) throws IOException {
       _path = path;
 
-      if(!_path.isFile()) {
+      BasicFileAttributes attrs = attributes(_path);
+
+      if(attrs == null || !attrs.isRegularFile()) {
         throw new IOException("Attempted to create a CachedFile, but was given a directory path at "+path+".");
       }
 
-      _lastModTime = _path.lastModified();
+      _seen = new PathStatus(path.getPath(), false, attrs.lastModifiedTime().toMillis(), attrs.size(), attrs.fileKey());
+      _lastModTime = _seen.getModificationTime();
+      _length = _seen.getLength();
     }
 
+    /**
+     * Build the file from attributes already at hand, such as those read while listing its parent
+     */
+    public LocalFile(File path, BasicFileAttributes attrs) throws IOException {
+      _path = path;
+
+      if(!attrs.isRegularFile()) {
+        throw new IOException("Attempted to create a CachedFile, but was given a directory path at "+path+".");
+      }
+
+      _seen = new PathStatus(path.getPath(), false, attrs.lastModifiedTime().toMillis(), attrs.size(), attrs.fileKey());
+      _lastModTime = _seen.getModificationTime();
+      _length = _seen.getLength();
+    }
+
+    /**
+     * When watched, events only prompt a comparison such that events which do not change the
+     * fingerprint, e.g. permission changes or identical rewrites, are not reported as stale
+     */
     public boolean isStale() {
-      if(_lastModTime != _path.lastModified()) {
+      if(_watched) {
+        if(!_dirty) {
+          return false;
+        }
+
+        // Clear first such that an event arriving during the comparison is not lost
+        _dirty = false;
+      }
+
+      boolean changed = true;
+
+      try {
+        changed = isChanged(currentStatus());
+      } catch(IOException e) {
+        log.debug("Could not read the attributes of file "+_path+"; error at: "+e.getLocalizedMessage());
+      }
+
+      if(changed && _watched) {
+        _dirty = true;
+      }
+
+      return changed;
+    }
+
+    public void setStaleFlag() {
+      // Clear first such that an event arriving while the flag is set is not lost
+      _dirty = false;
+
+      PathStatus stat = null;
+
+      try {
+        stat = currentStatus();
+      } catch(IOException e) {
+        log.error("Could not read the attributes of file "+_path+"; error at: "+e.getLocalizedMessage());
+        return;
+      }
+
+      _seen = stat;
+      _lastModTime = stat.getModificationTime();
+      _length = stat.getLength();
+      _checksum = getFingerprint() == Fingerprint.CHECKSUM ? checksum() : null;
+      _version++;
+    }
+
+    public void startWatching() {
+      _watched = true;
+
+      try {
+        PathStatus stat = currentStatus();
+        PathStatus seen = _seen;
+
+        if(seen.getModificationTime() != stat.getModificationTime() || seen.getLength() != stat.getLength()) {
+          _dirty = true;
+        }
+      } catch(IOException e) {
+        _dirty = true;
+      }
+    }
+
+    private PathStatus currentStatus() throws IOException {
+      BasicFileAttributes attrs = attributes(_path);
+
+      if(attrs == null) {
+        throw new NoSuchFileException(_path.getPath());
+      }
+
+      return new PathStatus(_path.getPath(), false, attrs.lastModifiedTime().toMillis(), attrs.size(), attrs.fileKey());
+    }
+
+    /**
+     * Compare the status against the one last seen under the registry's fingerprint
+     */
+    private boolean isChanged(PathStatus stat) {
+      Fingerprint fingerprint = getFingerprint();
+      PathStatus seen = _seen;
+      boolean changed = seen.getModificationTime() != stat.getModificationTime()
+        || (fingerprint != Fingerprint.MODIFICATION_TIME
+            && (seen.getLength() != stat.getLength() || !Objects.equals(seen.getFileId(), stat.getFileId())));
+
+      if(fingerprint != Fingerprint.CHECKSUM) {
+        return changed;
+      }
+
+      if(!changed) {
+        if(_checksum == null) {
+          holdChecksum(stat);
+        }
+
+        return false;
+      }
+
+      return !isRewrite(stat);
+    }
+
+    /**
+     * Record the checksum of the contents held, unless the file has changed since they were read
+     */
+    private synchronized void holdChecksum(PathStatus stat) {
+      if(_checksum == null && _lastModTime == stat.getModificationTime() && _length == stat.getLength()) {
+        _checksum = checksum();
+      }
+    }
+
+    /**
+     * Confirm whether a change in status left the contents identical to those held. Should it
+     * have, the new status is adopted as seen while the version and anything read at it are kept.
+     * Descriptors on a replaced file keep reading the identical contents of the original.
+     *
+     * @return true if the contents are identical to those held
+     */
+    private synchronized boolean isRewrite(PathStatus stat) {
+      PathStatus seen = _seen;
+
+      if(seen.getModificationTime() == stat.getModificationTime() && seen.getLength() == stat.getLength()
+         && Objects.equals(seen.getFileId(), stat.getFileId())) {
+        // Confirmed by another thread while this one waited
         return true;
-      } else {
+      }
+
+      Long held = _checksum;
+
+      if(held == null || _length != stat.getLength() || !held.equals(checksum())) {
         return false;
       }
+
+      log.debug("File "+_path+" was rewritten with identical contents; keeping the contents held.");
+
+      _seen = stat;
+
+      return true;
     }
 
-    public void setStaleFlag() {
-      _lastModTime = _path.lastModified();
+    /**
+     * @return the checksum of the file's contents, else null if the file could not be read
+     */
+    private Long checksum() {
+      try {
+        return computeChecksum(_path);
+      } catch(IOException e) {
+        log.error("Could not checksum file "+_path+"; error at: "+e.getLocalizedMessage());
+        return null;
+      }
+    }
+
+    public void stopWatching() {
+      _watched = false;
+    }
+
+    public void markStale() {
+      _statuses.invalidate(_path.getAbsolutePath());
+      _dirty = true;
+    }
+
+    public long lastModified() {
+      return _lastModTime;
+    }
+
+    public long length() {
+      return _length;
+    }
+
+    public long version() {
+      return _version;
+    }
+
+    public InputStream newInputStream() {
+      try {
+        return openStream(_path);
+      } catch(IOException e) {
+        log.error("Could not open file "+_path+"; error at: "+e.getLocalizedMessage());
+        return null;
+      }
     }
 
     public InputStream cachedInputStream() {
-      if(_fStream == null) {
-        log.warn("Attempting to retrieve a cached input stream when none was opened; will attempt to open.");
+      InputStream fStream = _fStream;
 
-        try {
-          _fStream = new FileInputStream(_path);
-        } catch(IOException e) {
-          log.error("Could not open file "+_path+"; error at: "+e.getLocalizedMessage());
-          _fStream = null;
-        }
+      if(fStream != null) {
+        return fStream;
       }
 
-      return _fStream;
+      synchronized(this) {
+        if(_fStream == null) {
+          log.debug("Attempting to retrieve a cached input stream when none was opened; will attempt to open.");
+
+          try {
+            _fStream = openStream(_path);
+          } catch(IOException e) {
+            log.error("Could not open file "+_path+"; error at: "+e.getLocalizedMessage());
+            _fStream = null;
+          }
+        }
+
+        return _fStream;
+      }
     }
 
-    public InputStream open() {
+    public synchronized InputStream open() {
       if(_fStream != null) {
         log.warn("Attempting to open a previously opened file with name "+_path+"; should be using the cachedInputStream method.");
       } else {
         try {
-          _fStream = new FileInputStream(_path);
+          _fStream = openStream(_path);
         } catch(IOException e) {
           log.error("Could not open file "+_path+"; error at: "+e.getLocalizedMessage());
           _fStream = null;
@@ -214,7 +782,10 @@ public class LocalCacheRegistry extends CacheRegistry {
       return _fStream;
     }
 
-    public void close() {
+    public synchronized void close() {
+      unmap();
+      closeChannel();
+
       if(_fStream == null) {
         log.warn("Attempting to close a nonexistent file descriptor with name "+_path);
       } else {
@@ -227,42 +798,295 @@ public class LocalCacheRegistry extends CacheRegistry {
         _fStream = null;
       }
     }
+
+    /**
+     * @return a read-only view over the mapped file, else null if the file could not be mapped
+     *         or spans more than one segment
+     */
+    public ByteBuffer mappedBuffer() {
+      List<ByteBuffer> segments = mappedSegments();
+
+      if(segments == null) {
+        return null;
+      }
+
+      if(segments.size() > 1) {
+        log.error("Cannot map file "+_path+" of "+_length+" bytes into a single buffer; use the mapped segments instead.");
+        return null;
+      }
+
+      return segments.isEmpty() ? ByteBuffer.allocate(0).asReadOnlyBuffer() : segments.get(0);
+    }
+
+    /**
+     * Map the file, reusing the existing mapping unless the stale flag has been set since it was
+     * created
+     *
+     * @return independent read-only views over each mapped segment, else null if an error
+     *         occurred
+     */
+    public List<ByteBuffer> mappedSegments() {
+      List<MappedByteBuffer> segments = _segments;
+
+      if(segments == null || _mappedVersion != _version) {
+        segments = map();
+      }
+
+      if(segments == null) {
+        return null;
+      }
+
+      List<ByteBuffer> views = new ArrayList<ByteBuffer>(segments.size());
+
+      for(MappedByteBuffer segment : segments) {
+        views.add(segment.duplicate());
+      }
+
+      return views;
+    }
+
+    private synchronized List<MappedByteBuffer> map() {
+      if(_segments != null && _mappedVersion == _version) {
+        return _segments;
+      }
+
+      unmap();
+
+      long version = _version;
+      List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+      try {
+        FileChannel channel = channel();
+        long size = channel.size();
+
+        for(long pos = 0; pos < size; pos += MAX_SEGMENT_SIZE) {
+          segments.add(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAX_SEGMENT_SIZE, size - pos)));
+        }
+      } catch(IOException e) {
+        log.error("Could not map file "+_path+"; error at: "+e.getLocalizedMessage());
+        unmap();
+        return null;
+      }
+
+      _mappedVersion = version;
+      _segments = Collections.unmodifiableList(segments);
+
+      return _segments;
+    }
+
+    /**
+     * Release the mapping. Views already handed out remain valid until they are garbage
+     * collected.
+     */
+    private synchronized void unmap() {
+      _segments = null;
+    }
+
+    /**
+     * Positioned read through the shared FileChannel, which many threads may read from at once
+     */
+    public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+      return read(position, ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    public int read(long position, ByteBuffer dst) throws IOException {
+      FileChannel channel = channel();
+
+      try {
+        return channel.read(dst, position);
+      } catch(ClosedChannelException e) {
+        // The channel was closed beneath us, e.g. by another reader being interrupted; retry once
+        return reopenChannel(channel).read(dst, position);
+      }
+    }
+
+    public void readFully(long position, byte[] buffer, int offset, int length) throws IOException {
+      ByteBuffer dst = ByteBuffer.wrap(buffer, offset, length);
+      long pos = position;
+
+      while(dst.hasRemaining()) {
+        int n = read(pos, dst);
+
+        if(n < 0) {
+          throw new EOFException("Reached the end of file "+_path+" before reading "+length+" bytes at position "+position+".");
+        }
+
+        pos += n;
+      }
+    }
+
+    public FileHandle openHandle() throws IOException {
+      final FileChannel channel = openChannel(_path);
+
+      return new FileHandle() {
+        public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+          return channel.read(ByteBuffer.wrap(buffer, offset, length), position);
+        }
+
+        public void close() throws IOException {
+          channel.close();
+        }
+      };
+    }
+
+    /**
+     * @return the channel shared by positioned reads and mappings, opening it if needed
+     */
+    private FileChannel channel() throws IOException {
+      FileChannel channel = _channel;
+
+      if(channel != null) {
+        return channel;
+      }
+
+      synchronized(this) {
+        if(_channel == null) {
+          _channel = openChannel(_path);
+        }
+
+        return _channel;
+      }
+    }
+
+    private synchronized FileChannel reopenChannel(FileChannel closed) throws IOException {
+      if(_channel == closed) {
+        _channel = null;
+      }
+
+      return channel();
+    }
+
+    private synchronized void closeChannel() {
+      if(_channel != null) {
+        try {
+          _channel.close();
+        } catch(IOException e) {
+          log.error("Could not close channel for file "+_path+"; error at: "+e.getLocalizedMessage());
+        }
+
+        _channel = null;
+      }
+    }
   }
 
-  public class LocalDirectory implements CachedDirectory {
+  /**
+   * A cached local directory. The listing is built on first use and then returned without
+   * touching the filesystem until the stale flag is set.
+   */
+  public class LocalDirectory implements CachedDirectory, Watched {
     private File _path = null;
-    private long _lastModTime;
+    private volatile long _lastModTime;
+    private volatile List<String> _listing = null;
+    private volatile boolean _watched = false;
+    private volatile boolean _dirty = false;
 
     public LocalDirectory(File path) throws IOException {
       _path = path;
 
-      if(!_path.isDirectory()) {
+      BasicFileAttributes attrs = attributes(_path);
+
+      if(attrs == null || !attrs.isDirectory()) {
+        throw new IOException("Attempted to create a CachedDirectory, but was given a file path at "+path+".");
+      }
+
+      _lastModTime = attrs.lastModifiedTime().toMillis();
+    }
+
+    /**
+     * Build the directory from attributes already at hand, such as those read while listing its
+     * parent
+     */
+    public LocalDirectory(File path, BasicFileAttributes attrs) throws IOException {
+      _path = path;
+
+      if(!attrs.isDirectory()) {
         throw new IOException("Attempted to create a CachedDirectory, but was given a file path at "+path+".");
       }
 
-      _lastModTime = _path.lastModified();
+      _lastModTime = attrs.lastModifiedTime().toMillis();
     }
 
+    /**
+     * Adopt a listing taken after the directory's modification time was read, unless one is
+     * already held
+     */
+    synchronized void prime(List<String> listing) {
+      if(_listing == null) {
+        _listing = Collections.unmodifiableList(listing);
+      }
+    }
+
+    /**
+     * @return an unmodifiable listing of the directory as of the last time the stale flag was set
+     */
     public List<String> list() {
-      List<String> paths = new ArrayList<String>();
+      List<String> listing = _listing;
 
-      for(String path : Arrays.asList(_path.list())) {
-        paths.add(_path.getAbsolutePath().concat(File.separator).concat(path));
+      if(listing != null) {
+        return listing;
       }
 
-      return paths;
+      synchronized(this) {
+        if(_listing != null) {
+          return _listing;
+        }
+
+        long start = System.nanoTime();
+        String[] names = _path.list();
+
+        recordCall("list", start);
+
+        if(names == null) {
+          log.error("Could not determine files for directory "+_path+".");
+          return Collections.<String>emptyList();
+        }
+
+        List<String> paths = new ArrayList<String>(names.length);
+
+        for(String path : Arrays.asList(names)) {
+          paths.add(_path.getAbsolutePath().concat(File.separator).concat(path));
+        }
+
+        _listing = Collections.unmodifiableList(paths);
+
+        return _listing;
+      }
     }
 
     public boolean isStale() {
-      if(_lastModTime != _path.lastModified()) {
+      if(_watched) {
+        return _dirty;
+      }
+
+      if(_lastModTime != lastModified(_path)) {
         return true;
       } else {
         return false;
       }
     }
 
-    public void setStaleFlag() {
-      _lastModTime = _path.lastModified();
+    public synchronized void setStaleFlag() {
+      // Clear first such that an event arriving while the flag is set is not lost
+      _dirty = false;
+      _lastModTime = lastModified(_path);
+      _listing = null;
+    }
+
+    public void startWatching() {
+      _watched = true;
+
+      if(_lastModTime != lastModified(_path)) {
+        _dirty = true;
+      }
+    }
+
+    public void stopWatching() {
+      _watched = false;
+    }
+
+    public void markStale() {
+      _statuses.invalidate(_path.getAbsolutePath());
+      _dirty = true;
     }
   }
 }
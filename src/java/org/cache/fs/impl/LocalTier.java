@@ -0,0 +1,402 @@
+package org.cache.fs.impl;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps local copies of remote files in a directory bounded by a total byte budget, such that
+ * repeated reads of a file are served from local disk rather than the remote filesystem.
+ *
+ * Each copy is named after the remote path along with the modification time and length it was
+ * copied at, so a copy is only ever used for the version of the file it holds. Copies are
+ * written to a temporary file and renamed into place, so a partial copy is never read.
+ *
+ * Copies are made on a background thread, one at a time, such that opening a file never waits
+ * on the copy; the open which finds no copy reads the remote file and a later open reads the copy.
+ *
+ * The directory may be shared by every registry on the host, in this process or any other. The
+ * directory itself is the only index: a file is copied while holding a lock on the region of a
+ * shared lock file chosen by its remote path, such that only one process fetches a given version
+ * and every other process reads the copy it leaves. As every process reads the same files they
+ * also share the same pages of the operating system's page cache.
+ *
+ * Once the budget is exceeded the least recently opened copies are deleted under a lock of their
+ * own; streams already open on them keep reading. The size of the directory is estimated from the
+ * copies this tier makes, so the directory is only listed once the estimate exceeds the budget or
+ * every so many copies, which accounts for those made and evicted by other processes.
+ */
+class LocalTier {
+  static Logger log = Logger.getLogger(LocalTier.class);
+
+  private static final String LOCK_FILE = ".lock";
+  private static final String TMP_SUFFIX = ".tmp";
+
+  /** Number of lock file regions remote paths are spread over */
+  private static final int REGIONS = 1024;
+
+  /** Number of copies after which the directory is listed even if the estimate fits the budget */
+  private static final int SCAN_INTERVAL = 64;
+
+  /** Lock file region held while evicting */
+  private static final int EVICTION_REGION = REGIONS;
+
+  /**
+   * File locks are held on behalf of the whole JVM, so threads within it, including those of
+   * other tiers on the same directory, first serialize on the monitor of the region
+   */
+  private static final Object[] MONITORS = new Object[REGIONS + 1];
+
+  static {
+    for(int i = 0; i < MONITORS.length; i++) {
+      MONITORS[i] = new Object();
+    }
+  }
+
+  private static final FileFilter COPIES = new FileFilter() {
+    public boolean accept(File f) {
+      return f.isFile() && !f.getName().startsWith(".") && !f.getName().endsWith(TMP_SUFFIX);
+    }
+  };
+
+  private final File _dir;
+  private final long _capacity;
+  private final FileChannel _locks;
+  private final ExecutorService _copier;
+  private final Set<String> _pending;
+  private final AtomicLong _estimate;
+  private final AtomicInteger _sinceScan;
+
+  /**
+   * Copies the contents of a remote file
+   */
+  interface Source {
+    InputStream open() throws IOException;
+  }
+
+  /**
+     * @throws IOException if the directory or its lock file could not be created
+     */
+  public LocalTier(File dir, long capacity) throws IOException {
+    if(!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create local tier directory "+dir+".");
+    }
+
+    _dir = dir;
+    _capacity = capacity;
+    _locks = new RandomAccessFile(new File(dir, LOCK_FILE), "rw").getChannel();
+    _pending = ConcurrentHashMap.<String>newKeySet();
+    _estimate = new AtomicLong(0);
+    _sinceScan = new AtomicInteger(0);
+    _copier = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "cache-registry-local-tier");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+    removeAbandoned();
+    scan();
+  }
+
+  /**
+     * @return the local copy of the file at the given version, else null if none exists yet, in
+     *         which case the file is copied from the source in the background unless this or
+     *         another process already has, or it does not fit within the budget
+     */
+  public File get(final String key, final long modTime, final long length, final Source source) {
+    if(length > _capacity) {
+      return null;
+    }
+
+    final String prefix = digest(key)+"-";
+    final File copy = new File(_dir, prefix+modTime+"-"+length);
+
+    if(copy.isFile()) {
+      copy.setLastModified(System.currentTimeMillis());
+      return copy;
+    }
+
+    if(!_pending.add(copy.getName())) {
+      return null;
+    }
+
+    try {
+      _copier.execute(new Runnable() {
+        public void run() {
+          try {
+            fetch(key, prefix, copy, length, source);
+          } catch(RuntimeException e) {
+            log.error("Could not copy "+key+" to local tier directory "+_dir+"; error at: "+e.getLocalizedMessage());
+          } finally {
+            _pending.remove(copy.getName());
+          }
+        }
+      });
+    } catch(RejectedExecutionException e) {
+      _pending.remove(copy.getName());
+      log.debug("Local tier directory "+_dir+" has been closed; not copying "+key+".");
+    }
+
+    return null;
+  }
+
+  /**
+     * Release the lock file; copies are left in place for other processes and later runs
+     */
+  public void close() {
+    _copier.shutdownNow();
+    _pending.clear();
+
+    try {
+      _locks.close();
+    } catch(IOException e) {
+      log.error("Could not close the lock file of local tier directory "+_dir+"; error at: "+e.getLocalizedMessage());
+    }
+  }
+
+  /**
+     * Copy the file while holding the lock on its region, such that only one process fetches it
+     */
+  private void fetch(String key, String prefix, File copy, long length, Source source) {
+    int region = region(prefix);
+
+    try {
+      synchronized(MONITORS[region]) {
+        FileLock lock = _locks.lock(region, 1, false);
+
+        try {
+          // Copied by another process while this one waited for the lock
+          if(copy.isFile()) {
+            return;
+          }
+
+          if(!populate(copy, length, source)) {
+            return;
+          }
+
+          _estimate.addAndGet(length - removeOtherVersions(prefix, copy));
+        } finally {
+          lock.release();
+        }
+      }
+    } catch(IOException e) {
+      log.error("Could not lock local tier directory "+_dir+" to copy "+key+"; error at: "+e.getLocalizedMessage());
+      return;
+    }
+
+    evict();
+  }
+
+  /**
+     * Copy the source through a temporary file renamed into place, such that a crash never leaves
+     * a partial copy under the final name
+     */
+  private boolean populate(File copy, long length, Source source) {
+    File tmp = new File(_dir, copy.getName()+"."+UUID.randomUUID()+TMP_SUFFIX);
+    InputStream in = null;
+    OutputStream out = null;
+
+    try {
+      in = source.open();
+      out = new FileOutputStream(tmp);
+
+      long copied = IOUtils.copyLarge(in, out);
+
+      out.close();
+
+      if(copied != length) {
+        log.debug("File for local copy "+copy+" changed while being copied; reading it remotely.");
+        return false;
+      }
+
+      Files.move(tmp.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+      return true;
+    } catch(IOException e) {
+      log.error("Could not copy file to local tier as "+copy+"; error at: "+e.getLocalizedMessage());
+      return false;
+    } finally {
+      IOUtils.closeQuietly(in);
+      IOUtils.closeQuietly(out);
+      tmp.delete();
+    }
+  }
+
+  /**
+     * Delete the copies of other versions of the same file, which will never be read again
+     *
+     * @return the number of bytes deleted
+     */
+  private long removeOtherVersions(String prefix, File copy) {
+    File[] copies = _dir.listFiles(COPIES);
+    long removed = 0;
+
+    if(copies == null) {
+      return removed;
+    }
+
+    for(File f : copies) {
+      long length = f.length();
+
+      if(f.getName().startsWith(prefix) && !f.equals(copy) && f.delete()) {
+        removed += length;
+      }
+    }
+
+    return removed;
+  }
+
+  /**
+     * Evict copies once the estimated size of the directory exceeds the capacity, else list the
+     * directory every so many copies to correct the estimate
+     */
+  private void evict() {
+    if(_estimate.get() <= _capacity && _sinceScan.incrementAndGet() < SCAN_INTERVAL) {
+      return;
+    }
+
+    scan();
+  }
+
+  /**
+     * Delete the least recently opened copies until the total size of the directory fits within
+     * the capacity, then reset the estimate to the size left
+     */
+  private void scan() {
+    _sinceScan.set(0);
+
+    try {
+      synchronized(MONITORS[EVICTION_REGION]) {
+        FileLock lock = _locks.lock(EVICTION_REGION, 1, false);
+
+        try {
+          File[] copies = _dir.listFiles(COPIES);
+
+          if(copies == null) {
+            return;
+          }
+
+          long weight = 0;
+
+          for(File f : copies) {
+            weight += f.length();
+          }
+
+          _estimate.set(weight);
+
+          if(weight <= _capacity) {
+            return;
+          }
+
+          Arrays.sort(copies, new Comparator<File>() {
+            public int compare(File a, File b) {
+              return Long.compare(a.lastModified(), b.lastModified());
+            }
+          });
+
+          for(int i = 0; i < copies.length && weight > _capacity; i++) {
+            long length = copies[i].length();
+
+            if(copies[i].delete()) {
+              weight -= length;
+              log.debug("Evicted local copy "+copies[i]+".");
+            }
+          }
+
+          _estimate.set(weight);
+        } finally {
+          lock.release();
+        }
+      }
+    } catch(IOException e) {
+      log.error("Could not lock local tier directory "+_dir+" to evict; error at: "+e.getLocalizedMessage());
+    }
+  }
+
+  /**
+     * Delete the temporary files left by processes which died while copying. A temporary file is
+     * only abandoned if the lock region of its file is free, as otherwise it is still being written.
+     */
+  private void removeAbandoned() {
+    File[] files = _dir.listFiles();
+
+    if(files == null) {
+      return;
+    }
+
+    for(File f : files) {
+      String name = f.getName();
+
+      if(!name.endsWith(TMP_SUFFIX) || name.indexOf('-') < 0) {
+        continue;
+      }
+
+      int region = region(name.substring(0, name.indexOf('-') + 1));
+
+      try {
+        synchronized(MONITORS[region]) {
+          FileLock lock = _locks.tryLock(region, 1, false);
+
+          if(lock != null) {
+            try {
+              f.delete();
+            } finally {
+              lock.release();
+            }
+          }
+        }
+      } catch(IOException e) {
+        log.error("Could not remove abandoned copy "+f+"; error at: "+e.getLocalizedMessage());
+      }
+    }
+  }
+
+  private static int region(String prefix) {
+    return (prefix.hashCode() & Integer.MAX_VALUE) % REGIONS;
+  }
+
+  private static String digest(String key) {
+    try {
+      byte[] hash = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder(hash.length * 2);
+
+      for(byte b : hash) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+
+      return hex.toString();
+    } catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
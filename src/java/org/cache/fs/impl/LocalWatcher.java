@@ -0,0 +1,248 @@
+package org.cache.fs.impl;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Watches the directories holding registered local paths and marks the matching entries stale as
+ * filesystem events arrive, such that staleness checks need not stat the path.
+ *
+ * Files are watched through their parent directory and directories through themselves. Should a
+ * watch overflow or become invalid every entry under it falls back to polling. A directory with
+ * nothing left registered under it is no longer watched.
+ */
+class LocalWatcher implements Runnable {
+  static Logger log = Logger.getLogger(LocalWatcher.class);
+
+  private final WatchService _watchService;
+  private final ConcurrentMap<Path,WatchedDirectory> _directories;
+  private final Thread _thread;
+
+  public LocalWatcher() throws IOException {
+    _watchService = FileSystems.getDefault().newWatchService();
+    _directories = new ConcurrentHashMap<Path,WatchedDirectory>();
+    _thread = new Thread(this, "cache-registry-watcher");
+    _thread.setDaemon(true);
+    _thread.start();
+  }
+
+  /**
+     * Watch a registered file for modification, creation, or deletion
+     */
+  public void watchFile(File path, Watched entry) {
+    Path file = path.getAbsoluteFile().toPath();
+
+    synchronized(_directories) {
+      WatchedDirectory wd = watchDirectory(file.getParent());
+
+      if(wd == null) {
+        entry.stopWatching();
+        return;
+      }
+
+      add(wd.files, file.getFileName().toString(), entry);
+    }
+
+    entry.startWatching();
+  }
+
+  /**
+     * Watch a registered directory for entries being created or deleted within it
+     */
+  public void watchDirectory(File path, Watched entry) {
+    synchronized(_directories) {
+      WatchedDirectory wd = watchDirectory(path.getAbsoluteFile().toPath());
+
+      if(wd == null) {
+        entry.stopWatching();
+        return;
+      }
+
+      wd.self.add(entry);
+    }
+
+    entry.startWatching();
+  }
+
+  /**
+     * Stop delivering events to any entries registered for the path, cancelling the watch on any
+     * directory left with no entries
+     */
+  public void unwatch(File path) {
+    Path p = path.getAbsoluteFile().toPath();
+
+    synchronized(_directories) {
+      WatchedDirectory wd = _directories.get(p);
+
+      if(wd != null) {
+        wd.self.clear();
+        release(wd);
+      }
+
+      if(p.getParent() != null && (wd = _directories.get(p.getParent())) != null) {
+        wd.files.remove(p.getFileName().toString());
+        release(wd);
+      }
+    }
+  }
+
+  /**
+     * Stop the watch thread; every watched entry falls back to polling
+     */
+  public void close() {
+    try {
+      _watchService.close();
+    } catch(IOException e) {
+      log.error("Could not close the WatchService; error at: "+e.getLocalizedMessage());
+    }
+
+    for(WatchedDirectory wd : _directories.values()) {
+      wd.stopWatching();
+    }
+
+    _directories.clear();
+  }
+
+  public void run() {
+    while(true) {
+      WatchKey key = null;
+
+      try {
+        key = _watchService.take();
+      } catch(InterruptedException e) {
+        return;
+      } catch(ClosedWatchServiceException e) {
+        return;
+      }
+
+      WatchedDirectory wd = _directories.get((Path)key.watchable());
+
+      if(wd == null) {
+        key.reset();
+        continue;
+      }
+
+      for(WatchEvent<?> event : key.pollEvents()) {
+        if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          log.warn("Watch events overflowed for directory "+wd.path+"; falling back to polling its entries.");
+          wd.stopWatching();
+          continue;
+        }
+
+        String name = ((Path)event.context()).toString();
+        Set<Watched> entries = wd.files.get(name);
+
+        if(entries != null) {
+          for(Watched entry : entries) {
+            entry.markStale();
+          }
+        }
+
+        if(event.kind() != StandardWatchEventKinds.ENTRY_MODIFY) {
+          for(Watched entry : wd.self) {
+            entry.markStale();
+          }
+        }
+      }
+
+      if(!key.reset()) {
+        log.warn("Watch on directory "+wd.path+" is no longer valid; falling back to polling its entries.");
+        _directories.remove(wd.path, wd);
+        wd.stopWatching();
+      }
+    }
+  }
+
+  /**
+     * Must be called holding the _directories monitor
+     */
+  private WatchedDirectory watchDirectory(Path dir) {
+    WatchedDirectory wd = _directories.get(dir);
+
+    if(wd != null) {
+      return wd;
+    }
+
+    WatchKey key = null;
+
+    try {
+      key = dir.register(_watchService,
+                         StandardWatchEventKinds.ENTRY_CREATE,
+                         StandardWatchEventKinds.ENTRY_DELETE,
+                         StandardWatchEventKinds.ENTRY_MODIFY);
+    } catch(IOException e) {
+      log.warn("Could not watch directory "+dir+"; falling back to polling; error at: "+e.getLocalizedMessage());
+      return null;
+    } catch(ClosedWatchServiceException e) {
+      return null;
+    }
+
+    wd = new WatchedDirectory(dir, key);
+    _directories.put(dir, wd);
+
+    return wd;
+  }
+
+  /**
+     * Cancel the watch on a directory with no entries left; must be called holding the
+     * _directories monitor
+     */
+  private void release(WatchedDirectory wd) {
+    if(wd.self.isEmpty() && wd.files.isEmpty() && _directories.remove(wd.path, wd)) {
+      wd.key.cancel();
+    }
+  }
+
+  private static void add(ConcurrentMap<String,Set<Watched>> entries, String name, Watched entry) {
+    Set<Watched> set = entries.get(name);
+
+    if(set == null) {
+      Set<Watched> prev = entries.putIfAbsent(name, set = new CopyOnWriteArraySet<Watched>());
+
+      if(prev != null) {
+        set = prev;
+      }
+    }
+
+    set.add(entry);
+  }
+
+  private static class WatchedDirectory {
+    final Path path;
+    final WatchKey key;
+    final ConcurrentMap<String,Set<Watched>> files = new ConcurrentHashMap<String,Set<Watched>>();
+    final Set<Watched> self = new CopyOnWriteArraySet<Watched>();
+
+    WatchedDirectory(Path path, WatchKey key) {
+      this.path = path;
+      this.key = key;
+    }
+
+    void stopWatching() {
+      for(Set<Watched> entries : files.values()) {
+        for(Watched entry : entries) {
+          entry.stopWatching();
+        }
+      }
+
+      for(Watched entry : self) {
+        entry.stopWatching();
+      }
+    }
+  }
+}
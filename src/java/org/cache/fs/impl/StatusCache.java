@@ -0,0 +1,144 @@
+package org.cache.fs.impl;
+
+import java.io.IOException;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the statuses fetched from a filesystem for a short time such that the several checks
+ * making up one registry operation, e.g. isFile followed by isStale, cost a single call.
+ *
+ * Missing paths are held as negative entries. Failed lookups are never held. Any change made
+ * through the registry, or reported by a watcher, drops the affected entries. Entries are kept in
+ * key order such that every path beneath a directory can be dropped at once.
+ */
+class StatusCache<S> {
+  /**
+   * Number of entries above which expired entries are swept on insert, at most once per TTL
+   * as no entry can expire sooner
+   */
+  private static final int SWEEP_THRESHOLD = 4096;
+
+  private final ConcurrentNavigableMap<String,Entry<S>> _entries;
+  private final AtomicLong _nextSweep;
+  private volatile long _ttl;
+
+  /**
+   * Fetches the status of a path from the filesystem
+   */
+  interface Loader<S> {
+    /**
+     * @return the status of the path, else null if the path does not exist
+     */
+    S load(String key) throws IOException;
+  }
+
+  public StatusCache(long ttl) {
+    _entries = new ConcurrentSkipListMap<String,Entry<S>>();
+    _nextSweep = new AtomicLong();
+    _ttl = ttl;
+  }
+
+  /**
+     * @return the held status for the key if fetched within the TTL, else the status fetched by
+     *         the loader; null if the path does not exist
+     */
+  public S get(String key, Loader<S> loader) throws IOException {
+    long ttl = _ttl;
+
+    if(ttl > 0) {
+      Entry<S> e = _entries.get(key);
+
+      if(e != null && System.currentTimeMillis() - e.fetchedAt < ttl) {
+        return e.status;
+      }
+    }
+
+    S status = loader.load(key);
+
+    put(key, status);
+
+    return status;
+  }
+
+  /**
+     * Hold a status fetched elsewhere, e.g. by a directory listing
+     *
+     * @param status the status of the path, or null if the path is known not to exist
+     */
+  public void put(String key, S status) {
+    long ttl = _ttl;
+
+    if(ttl <= 0) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+
+    _entries.put(key, new Entry<S>(status, now));
+
+    if(_entries.size() > SWEEP_THRESHOLD) {
+      long next = _nextSweep.get();
+
+      // Only the one caller to claim the sweep scans the entries
+      if(now >= next && _nextSweep.compareAndSet(next, now + ttl)) {
+        sweep(now - ttl);
+      }
+    }
+  }
+
+  public void invalidate(String key) {
+    _entries.remove(key);
+  }
+
+  /**
+     * Drop the entry for the key along with every entry beneath it, should it be a directory
+     *
+     * @param separator the character separating the names within a key
+     */
+  public void invalidateTree(String key, char separator) {
+    String below = key.charAt(key.length() - 1) == separator ? key : key+separator;
+
+    _entries.remove(key);
+    // Keys beneath sort between the prefix and the prefix with its separator incremented
+    _entries.subMap(below, below.substring(0, below.length() - 1)+(char)(separator + 1)).clear();
+  }
+
+  public void clear() {
+    _entries.clear();
+  }
+
+  /**
+     * Set how long, in milliseconds, a status is held, or zero to hold none
+     */
+  public void setTtl(long ttl) {
+    _ttl = ttl;
+
+    if(ttl <= 0) {
+      clear();
+    }
+  }
+
+  private void sweep(long cutoff) {
+    Iterator<Entry<S>> it = _entries.values().iterator();
+
+    while(it.hasNext()) {
+      if(it.next().fetchedAt <= cutoff) {
+        it.remove();
+      }
+    }
+  }
+
+  private static class Entry<S> {
+    final S status;
+    final long fetchedAt;
+
+    Entry(S status, long fetchedAt) {
+      this.status = status;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+}
@@ -0,0 +1,21 @@
+package org.cache.fs.impl;
+
+/**
+ * A registered path whose staleness can be driven by filesystem events rather than polling
+ */
+interface Watched {
+  /**
+     * Begin answering staleness from events, checking once for any change missed beforehand
+     */
+  void startWatching();
+
+  /**
+     * Answer staleness by polling the filesystem from now on
+     */
+  void stopWatching();
+
+  /**
+     * Record that an event has reported a change to the path
+     */
+  void markStale();
+}
@@ -1,11 +1,172 @@
 package org.cache.fs.sys;
 
+import java.io.EOFException;
 import java.io.InputStream;
+import java.io.IOException;
 
+import java.nio.ByteBuffer;
+
+/**
+ * A file held open by a registry. Only isStale, setStaleFlag, open, close and cachedInputStream
+ * need be implemented; the positioned reads default to reading through newInputStream, while the
+ * remaining methods throw UnsupportedOperationException until overridden. Implementations which
+ * leave them unsupported cannot back the content cache, object cache, leases or snapshots.
+ */
 public interface CachedFile {
   boolean isStale();
   void setStaleFlag();
+
+  /**
+     * @return the modification time recorded when the file was registered or last had its stale
+     *         flag set
+     */
+  default long lastModified() {
+    throw new UnsupportedOperationException("lastModified");
+  }
+
+  /**
+     * @return the length in bytes recorded when the file was registered or last had its stale
+     *         flag set
+     */
+  default long length() {
+    throw new UnsupportedOperationException("length");
+  }
+
+  /**
+     * @return a counter which increases every time the file is found changed and has its stale
+     *         flag set, such that anything read from the file can be tied to the version read
+     */
+  default long version() {
+    throw new UnsupportedOperationException("version");
+  }
+
   InputStream open();
   void close();
   InputStream cachedInputStream();
+
+  /**
+     * Open a new stream on the file independent of the cached stream. The caller owns the
+     * returned stream and is responsible for closing it.
+     *
+     * @return a new InputStream, else null if the file could not be opened
+     */
+  default InputStream newInputStream() {
+    throw new UnsupportedOperationException("newInputStream");
+  }
+
+  /**
+     * Open a new descriptor on the file independent of the cached stream for positioned reads.
+     * The caller owns the returned handle and is responsible for closing it. By default each read
+     * on the handle is served by read(long, byte[], int, int).
+     */
+  default FileHandle openHandle() throws IOException {
+    return new FileHandle() {
+      public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        return CachedFile.this.read(position, buffer, offset, length);
+      }
+
+      public void close() {
+        return;
+      }
+    };
+  }
+
+  /**
+     * Read up to length bytes starting at the given position in the file without moving the
+     * position of the cached stream. Safe to call from many threads at once. By default a new
+     * stream is opened and skipped forward to the position on every call.
+     *
+     * @return the number of bytes read, or -1 if the position is at or past the end of the file
+     */
+  default int read(long position, byte[] buffer, int offset, int length) throws IOException {
+    InputStream in = newInputStream();
+
+    if(in == null) {
+      throw new IOException("Could not open a new stream on the file.");
+    }
+
+    try {
+      long skipped = 0;
+
+      while(skipped < position) {
+        long n = in.skip(position - skipped);
+
+        if(n <= 0) {
+          if(in.read() < 0) {
+            return -1;
+          }
+
+          n = 1;
+        }
+
+        skipped += n;
+      }
+
+      if(length == 0) {
+        return 0;
+      }
+
+      int total = 0;
+
+      while(total < length) {
+        int n = in.read(buffer, offset + total, length - total);
+
+        if(n < 0) {
+          break;
+        }
+
+        total += n;
+      }
+
+      return total == 0 ? -1 : total;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+     * Read bytes starting at the given position in the file into the remaining space of the
+     * buffer without moving the position of the cached stream
+     *
+     * @return the number of bytes read, or -1 if the position is at or past the end of the file
+     */
+  default int read(long position, ByteBuffer dst) throws IOException {
+    if(dst.hasArray()) {
+      int n = read(position, dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+
+      if(n > 0) {
+        dst.position(dst.position() + n);
+      }
+
+      return n;
+    }
+
+    byte[] buffer = new byte[dst.remaining()];
+    int n = read(position, buffer, 0, buffer.length);
+
+    if(n > 0) {
+      dst.put(buffer, 0, n);
+    }
+
+    return n;
+  }
+
+  /**
+     * Read exactly length bytes starting at the given position in the file
+     *
+     * @throws java.io.EOFException if the end of the file is reached first
+     */
+  default void readFully(long position, byte[] buffer, int offset, int length) throws IOException {
+    int total = 0;
+
+    while(total < length) {
+      int n = read(position + total, buffer, offset + total, length - total);
+
+      if(n < 0) {
+        throw new EOFException("Reached the end of the file after "+total+" of "+length+" bytes.");
+      }
+
+      total += n;
+    }
+  }
 }
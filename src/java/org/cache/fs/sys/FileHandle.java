@@ -0,0 +1,17 @@
+package org.cache.fs.sys;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * An open descriptor on a file which only supports positioned reads and may therefore be shared
+ * by any number of readers at once.
+ */
+public interface FileHandle extends Closeable {
+  /**
+     * Read up to length bytes starting at the given position in the file
+     *
+     * @return the number of bytes read, or -1 if the position is at or past the end of the file
+     */
+  int read(long position, byte[] buffer, int offset, int length) throws IOException;
+}
@@ -0,0 +1,44 @@
+package org.cache.fs.sys;
+
+/**
+ * The status of a single path as returned by a directory listing.
+ */
+public class PathStatus {
+  private final String _path;
+  private final boolean _directory;
+  private final long _modTime;
+  private final long _length;
+  private final Object _fileId;
+
+  /**
+     * @param fileId an identifier which changes when the path is replaced by a new file, such as
+     *        an inode, or null if the filesystem does not expose one
+     */
+  public PathStatus(String path, boolean directory, long modTime, long length, Object fileId) {
+    _path = path;
+    _directory = directory;
+    _modTime = modTime;
+    _length = length;
+    _fileId = fileId;
+  }
+
+  public String getPath() {
+    return _path;
+  }
+
+  public boolean isDirectory() {
+    return _directory;
+  }
+
+  public long getModificationTime() {
+    return _modTime;
+  }
+
+  public long getLength() {
+    return _length;
+  }
+
+  public Object getFileId() {
+    return _fileId;
+  }
+}
@@ -0,0 +1,66 @@
+(ns cache-registry.content-cache-test
+  (:import [java.io File]
+           [java.util Arrays Random]
+           [org.apache.commons.io FileUtils]
+           [org.apache.commons.lang3 StringUtils]
+           [org.cache.fs.impl HadoopCacheRegistry])
+  (:require [clojure.test :refer :all]
+            [cache-registry.test-util :refer :all]))
+
+(defn- held
+  "@return the paths whose contents the registry holds in memory"
+  [registry]
+  (set (for [[path stats] (.getContentStats registry)
+             :when (pos? (.getFootprint stats))]
+         path)))
+
+(deftest evicts-least-recently-read-within-budget
+  (with-temp-dir [dir]
+    (let [[a b c] (for [name ["a" "b" "c"]]
+                    (write-file (File. dir name) (StringUtils/repeat name 100)))
+          registry (HadoopCacheRegistry.)]
+      (try
+        (.setContentCacheCapacity registry 250)
+        (doseq [path [a b c]]
+          (.registerFile registry path))
+        (doseq [path [a b a c]]
+          (is (= 100 (alength (.getBytes registry path)))))
+        (testing "the least recently read file is evicted to fit the budget"
+          (is (= #{a c} (held registry))))
+        (testing "a file larger than the whole budget is read but never held"
+          (let [big (.registerFile registry (write-file (File. dir "big") (StringUtils/repeat "x" 300)))]
+            (is (= 300 (alength (.getBytes registry big))))
+            (is (= #{a c} (held registry)))))
+        (testing "an evicted file is read again as a miss"
+          (.getBytes registry b)
+          (is (= 2 (.getMisses (get (.getContentStats registry) b))))
+          (is (= #{b c} (held registry))))
+        (finally
+          (.destroy registry))))))
+
+(deftest compressed-contents-round-trip
+  (with-temp-dir [dir]
+    (let [text (apply str (for [i (range 1000)] (str "line " (mod i 7) "\n")))
+          compressible (write-file (File. dir "compressible") text)
+          random (let [b (byte-array 4096)] (.nextBytes (Random. 42) b) b)
+          incompressible (str (doto (File. dir "incompressible")
+                                (FileUtils/writeByteArrayToFile random)))
+          registry (HadoopCacheRegistry.)]
+      (try
+        (.setContentCompression registry true)
+        (doseq [path [compressible incompressible]]
+          (.registerFile registry path))
+        (testing "compressed contents read back as written"
+          (is (= text (String. (.getBytes registry compressible) "UTF-8")))
+          (is (= text (String. (.getBytes registry compressible) "UTF-8")))
+          (let [stats (get (.getContentStats registry) compressible)]
+            (is (.isCompressed stats))
+            (is (< (.getFootprint stats) (/ (count text) 10)))))
+        (testing "contents which compress by less than a tenth are held as read"
+          (is (Arrays/equals random (.getBytes registry incompressible)))
+          (is (Arrays/equals random (.getBytes registry incompressible)))
+          (let [stats (get (.getContentStats registry) incompressible)]
+            (is (not (.isCompressed stats)))
+            (is (= 4096 (.getFootprint stats)))))
+        (finally
+          (.destroy registry))))))
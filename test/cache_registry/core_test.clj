@@ -1,7 +1,36 @@
 (ns cache-registry.core-test
-  (:import [org.cache.fs.impl HadoopCacheRegistry])
-  (:require [clojure.test :refer :all]))
+  (:import [java.io File]
+           [java.util.concurrent ExecutionException RejectedExecutionException]
+           [org.cache.fs.impl HadoopCacheRegistry])
+  (:require [clojure.test :refer :all]
+            [cache-registry.test-util :refer :all]))
 
-(deftest a-test
-  (testing "FIXME, I fail."
-    (is (= 0 1))))
+(deftest racing-registrations-share-one-file
+  (with-temp-dir [dir]
+    (let [path (write-file (File. dir "racing") "contents")
+          registry (HadoopCacheRegistry.)
+          [sink counts] (call-counter)]
+      (try
+        (.addMetricsSink registry sink)
+        (testing "every caller registers the same path"
+          (is (= #{path} (set (race 16 #(.registerFile registry path))))))
+        (testing "only the winner opens a descriptor, so losers leave none behind"
+          (is (= 1 (get @counts "fs.open"))))
+        (testing "every caller is served the one registered file"
+          (is (= 1 (count (set (map #(System/identityHashCode %)
+                                    (race 16 #(.getStream registry path))))))))
+        (finally
+          (.destroy registry))))))
+
+
+(deftest destroyed-registries-reject-asynchronous-calls
+  (with-temp-dir [dir]
+    (let [path (write-file (File. dir "destroyed") "contents")
+          registry (HadoopCacheRegistry.)]
+      (is (= path @(.registerFileAsync registry path)))
+      (.destroy registry)
+      (testing "the call fails rather than starting a new pool"
+        (let [future (.getBytesAsync registry path)]
+          (is (.isCompletedExceptionally future))
+          (is (instance? RejectedExecutionException
+                         (try @future nil (catch ExecutionException e (.getCause e))))))))))
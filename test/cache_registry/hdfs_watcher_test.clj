@@ -0,0 +1,148 @@
+(ns cache-registry.hdfs-watcher-test
+  (:import [java.io File]
+           [org.apache.hadoop.conf Configuration]
+           [org.apache.hadoop.fs FileSystem Path]
+           [org.apache.hadoop.hdfs MiniDFSCluster MiniDFSCluster$Builder]
+           [org.cache.fs.impl HadoopCacheRegistry])
+  (:require [clojure.test :refer :all]
+            [cache-registry.test-util :refer :all]))
+
+(def ^:dynamic ^MiniDFSCluster *cluster* nil)
+
+(defn- with-cluster
+  [f]
+  (with-temp-dir [dir]
+    (let [conf (doto (Configuration.)
+                 (.set MiniDFSCluster/HDFS_MINIDFS_BASEDIR (str dir)))
+          cluster (.build (.numDataNodes (MiniDFSCluster$Builder. conf) 1))]
+      (try
+        (binding [*cluster* cluster]
+          (f))
+        (finally
+          (.shutdown cluster))))))
+
+(use-fixtures :once with-cluster)
+
+(defn- ^FileSystem fs []
+  (.getFileSystem *cluster*))
+
+(defn- create
+  [path ^String s]
+  (with-open [out (.create (fs) (Path. ^String path) true)]
+    (.writeBytes out s))
+  path)
+
+(defn- watched-registry
+  "@return a registry on the cluster in watch mode, counting its FileSystem calls in the atom"
+  [counts-sink]
+  (doto (HadoopCacheRegistry. (.getConfiguration *cluster* 0))
+    (.setStatusTtl 0)
+    (.addMetricsSink counts-sink)
+    (.setWatchMode true)))
+
+(deftest events-mark-files-stale-without-polling
+  (let [[sink counts] (call-counter)
+        registry (watched-registry sink)
+        appended (create "/watch/appended" "one")
+        renamed (create "/watch/renamed" "one")
+        deleted (create "/watch/deleted" "one")]
+    (try
+      (doseq [path [appended renamed deleted]]
+        (.registerFile registry path))
+      (reset! counts {})
+      (testing "unchanged files are answered without asking the NameNode"
+        (is (not-any? true? (for [_ (range 10) path [appended renamed deleted]]
+                              (.isStale registry path))))
+        (is (nil? (get @counts "fs.getFileStatus"))))
+      (with-open [out (.append (fs) (Path. ^String appended))]
+        (.writeBytes out "two"))
+      (.rename (fs) (Path. ^String renamed) (Path. "/watch/renamed-away"))
+      (.delete (fs) (Path. ^String deleted) false)
+      (testing "appends, renames, and deletes mark the file stale"
+        (is (eventually #(.isStale registry appended)))
+        (is (eventually #(.isStale registry renamed)))
+        (is (eventually #(.isStale registry deleted))))
+      (finally
+        (.destroy registry)))))
+
+(deftest renaming-or-deleting-an-ancestor-marks-entries-beneath-it-stale
+  ;; Created before the watcher opens the event stream, such that no late event marks them stale
+  (let [moved (create "/moved/sub/file" "one")
+        removed (create "/removed/sub/file" "one")
+        [sink _] (call-counter)
+        registry (watched-registry sink)]
+    (try
+      (doseq [path [moved removed]]
+        (.registerFile registry path))
+      (doseq [dir ["/moved/sub" "/removed/sub"]]
+        (.registerDirectory registry dir))
+      (is (not-any? true? (map #(.isStale registry %) [moved removed "/moved/sub" "/removed/sub"])))
+      (.rename (fs) (Path. "/moved") (Path. "/moved-away"))
+      (.delete (fs) (Path. "/removed") true)
+      (testing "a file beneath a renamed directory is marked stale"
+        (is (eventually #(.isStale registry moved)))
+        (is (eventually #(.isStale registry "/moved/sub"))))
+      (testing "a file beneath a deleted directory is marked stale"
+        (is (eventually #(.isStale registry removed)))
+        (is (eventually #(.isStale registry "/removed/sub"))))
+      (finally
+        (.destroy registry)))))
+
+(deftest events-mark-directories-stale
+  (let [[sink _] (call-counter)
+        registry (watched-registry sink)]
+    (try
+      (.mkdirs (fs) (Path. "/listed"))
+      (create "/listed/a" "a")
+      (.registerDirectory registry "/listed")
+      (is (not (.isStale registry "/listed")))
+      (create "/listed/b" "b")
+      (is (eventually #(.isStale registry "/listed")))
+      (finally
+        (.destroy registry)))))
+
+(deftest falls-back-to-polling-without-inotify
+  (with-temp-dir [dir]
+    (let [[sink counts] (call-counter)
+          path (write-file (File. dir "polled") "one" 1000000)
+          registry (doto (HadoopCacheRegistry.)
+                     (.setStatusTtl 0)
+                     (.addMetricsSink sink)
+                     (.setWatchMode true))]
+      (try
+        (.registerFile registry path)
+        (reset! counts {})
+        (is (not (.isStale registry path)))
+        (testing "staleness of a local file is polled"
+          (is (pos? (get @counts "fs.getFileStatus" 0))))
+        (write-file (File. path) "two!" 2000000)
+        (is (.isStale registry path))
+        (finally
+          (.destroy registry))))))
+
+(deftest falls-back-to-polling-once-the-event-stream-stops
+  (let [[sink counts] (call-counter)
+        registry (watched-registry sink)
+        path (create "/stopped/file" "one")]
+    (try
+      (.registerFile registry path)
+      (doseq [^Thread t (keys (Thread/getAllStackTraces))
+              :when (= "cache-registry-inotify" (.getName t))]
+        (.interrupt t)
+        (.join t 10000))
+      (reset! counts {})
+      (is (not (.isStale registry path)))
+      (testing "staleness is polled once the stream has stopped"
+        (is (pos? (get @counts "fs.getFileStatus" 0))))
+      (create path "two!")
+      (is (.isStale registry path))
+      (finally
+        (.destroy registry)))))
+
+(deftest destroy-leaves-the-cached-file-system-open
+  (let [conf (.getConfiguration *cluster* 0)
+        cached (FileSystem/get conf)
+        registry (HadoopCacheRegistry. conf)]
+    (.registerFile registry (create "/destroyed/file" "one"))
+    (.destroy registry)
+    (is (.exists cached (Path. "/destroyed/file")))))
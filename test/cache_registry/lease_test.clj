@@ -0,0 +1,47 @@
+(ns cache-registry.lease-test
+  (:import [java.io File]
+           [java.nio.file Files LinkOption]
+           [org.apache.commons.io IOUtils]
+           [org.cache.fs.impl LocalCacheRegistry])
+  (:require [clojure.test :refer :all]
+            [cache-registry.test-util :refer :all]))
+
+(defn- open-replaced
+  "@return the number of descriptors this process holds on replaced versions of the file, else nil
+  where the platform does not list them under /proc/self/fd"
+  [^File f]
+  (let [fds (File. "/proc/self/fd")]
+    (when (.isDirectory fds)
+      (count (for [fd (.listFiles fds)
+                   :let [target (try (str (Files/readSymbolicLink (.toPath fd)))
+                                     (catch Exception _ nil))]
+                   :when (= target (str (.getCanonicalPath f) " (deleted)"))]
+               fd)))))
+
+(deftest old-version-stays-open-until-its-last-lease-is-released
+  (with-temp-dir [dir]
+    (let [f (File. dir "leased")
+          path (write-file f "one" 1000000)
+          registry (LocalCacheRegistry.)]
+      (try
+        (.setStatusTtl registry 0)
+        (.registerFile registry path)
+        (let [old-a (.acquire registry path)
+              old-b (.acquire registry path)]
+          (write-file f "two!" 2000000)
+          (with-open [new (.acquire registry path)]
+            (testing "a new lease reads the new version"
+              (is (= "two!" (IOUtils/toString new "UTF-8")))))
+          (testing "leases on the old version keep reading it"
+            (is (= "one" (IOUtils/toString old-a "UTF-8"))))
+          (.close old-a)
+          (testing "the old descriptor stays open while a lease is held"
+            (is (= "one" (IOUtils/toString old-b "UTF-8")))
+            (when-let [n (open-replaced f)]
+              (is (= 1 n))))
+          (.close old-b)
+          (testing "the old descriptor is closed with its last lease"
+            (when-let [n (open-replaced f)]
+              (is (= 0 n)))))
+        (finally
+          (.destroy registry))))))
@@ -0,0 +1,71 @@
+(ns cache-registry.local-tier-test
+  (:import [java.io File]
+           [org.cache.fs.impl HadoopCacheRegistry])
+  (:require [clojure.test :refer :all]
+            [cache-registry.test-util :refer :all]))
+
+(defn- copies
+  "@return the names of the copies held in the tier directory, leaving out the lock file and
+  copies still being written"
+  [^File tier]
+  (set (remove #(or (.startsWith ^String % ".") (.endsWith ^String % ".tmp")) (.list tier))))
+
+(deftest copies-in-the-background-and-reads-the-copy
+  (with-temp-dir [dir]
+    (let [f (File. dir "remote")
+          path (write-file f "one" 1000000)
+          tier (File. dir "tier")
+          registry (HadoopCacheRegistry.)
+          [sink counts] (call-counter)]
+      (try
+        (.setStatusTtl registry 0)
+        (.addMetricsSink registry sink)
+        (is (.setLocalTier registry (str tier) 1024))
+        (.registerFile registry path)
+        (testing "the file is copied to the tier in the background"
+          (is (eventually #(= 1 (count (copies tier)))))
+          (is (= 2 (get @counts "fs.open"))))
+        (testing "later opens read the copy"
+          (.unregister registry path)
+          (.registerFile registry path)
+          (is (= "one" (String. (.getBytes registry path) "UTF-8")))
+          (is (= 2 (get @counts "fs.open"))))
+        (testing "a new version replaces the copy of the old one"
+          (let [old (copies tier)]
+            (write-file f "two!" 2000000)
+            (is (= "two!" (String. (.getBytes registry path) "UTF-8")))
+            (is (eventually #(let [now (copies tier)]
+                               (and (= 1 (count now)) (not= old now)))))))
+        (finally
+          (.destroy registry))))))
+
+(deftest shares-copies-between-registries-within-the-budget
+  (with-temp-dir [dir]
+    (let [paths (vec (for [i (range 4)]
+                       (write-file (File. dir (str "f" i)) (apply str (repeat 10 i)) 1000000)))
+          tier (File. dir "tier")
+          fetcher (HadoopCacheRegistry.)
+          reader (HadoopCacheRegistry.)
+          [sink counts] (call-counter)]
+      (try
+        (.setLocalTier fetcher (str tier) 25)
+        (.setLocalTier reader (str tier) 25)
+        (.addMetricsSink reader sink)
+        (.registerFile fetcher (paths 0))
+        (is (eventually #(= 1 (count (copies tier)))))
+        (testing "a copy made by one registry is read by another without a remote open"
+          (is (= "0000000000" (String. (.getBytes reader (paths 0)) "UTF-8")))
+          (is (nil? (get @counts "fs.open"))))
+        (testing "the least recently opened copies are evicted to fit the budget"
+          (doseq [path (rest paths)]
+            (let [before (copies tier)]
+              (.registerFile fetcher path)
+              (is (eventually #(seq (remove before (copies tier)))))))
+          (is (eventually #(= 2 (count (copies tier)))))
+          (.getBytes reader (paths 3))
+          (is (nil? (get @counts "fs.open")))
+          (.getBytes reader (paths 1))
+          (is (pos? (get @counts "fs.open" 0))))
+        (finally
+          (.destroy fetcher)
+          (.destroy reader))))))
@@ -0,0 +1,58 @@
+(ns cache-registry.object-cache-test
+  (:import [java.io File]
+           [java.util.function Function]
+           [org.apache.commons.io IOUtils]
+           [org.cache.fs.impl HadoopCacheRegistry])
+  (:require [clojure.test :refer :all]
+            [cache-registry.test-util :refer :all]))
+
+(defn- loader
+  "@return a loader parsing the file as a string, counting its calls in the atom, which throws
+  while the contents are \"bad\""
+  [calls]
+  (reify Function
+    (apply [_ in]
+      (swap! calls inc)
+      (let [s (IOUtils/toString in "UTF-8")]
+        (when (= "bad" s)
+          (throw (IllegalArgumentException. "unparseable")))
+        s))))
+
+(deftest parses-once-per-version
+  (with-temp-dir [dir]
+    (let [path (write-file (File. dir "parsed") "one" 1000000)
+          registry (HadoopCacheRegistry.)
+          calls (atom 0)]
+      (try
+        (.setStatusTtl registry 0)
+        (.registerFile registry path)
+        (testing "a keyed object is parsed once however many loaders ask for it"
+          (is (= ["one" "one" "one"] (for [_ (range 3)] (.getObject registry path :parsed (loader calls)))))
+          (is (= 1 @calls)))
+        (testing "the object is parsed again once the file changes"
+          (write-file (File. path) "two!" 2000000)
+          (is (= "two!" (.getObject registry path :parsed (loader calls))))
+          (is (= 2 @calls)))
+        (finally
+          (.destroy registry))))))
+
+(deftest failed-loads-are-not-retried-until-the-file-changes
+  (with-temp-dir [dir]
+    (let [path (write-file (File. dir "parsed") "one" 1000000)
+          registry (HadoopCacheRegistry.)
+          calls (atom 0)
+          parse (loader calls)]
+      (try
+        (.setStatusTtl registry 0)
+        (.registerFile registry path)
+        (is (= "one" (.getObject registry path parse)))
+        (write-file (File. path) "bad" 2000000)
+        (testing "the previous object is served while the file cannot be parsed"
+          (is (= ["one" "one" "one"] (for [_ (range 3)] (.getObject registry path parse))))
+          (is (= 2 @calls)))
+        (testing "the file is parsed again once it changes"
+          (write-file (File. path) "three" 3000000)
+          (is (= "three" (.getObject registry path parse)))
+          (is (= 3 @calls)))
+        (finally
+          (.destroy registry))))))
@@ -0,0 +1,52 @@
+(ns cache-registry.open-files-test
+  (:import [java.io File]
+           [java.lang.management ManagementFactory]
+           [javax.management ObjectName]
+           [org.cache.fs.impl HadoopCacheRegistry])
+  (:require [clojure.test :refer :all]
+            [cache-registry.test-util :refer :all]))
+
+(defn- tracked-open-files
+  "@return a function reading the number of open descriptors the registry reports over JMX"
+  [registry name]
+  (.registerMBean registry name)
+  (let [object-name (ObjectName. (str "org.cache.fs:type=CacheRegistry,name=" (ObjectName/quote name)))]
+    #(.getAttribute (ManagementFactory/getPlatformMBeanServer) object-name "TrackedOpenFiles")))
+
+(deftest caps-open-descriptors-without-failing-reads
+  (with-temp-dir [dir]
+    (let [paths (vec (for [i (range 20)]
+                       (write-file (File. dir (str "f" i)) (format "file-%02d" i))))
+          registry (HadoopCacheRegistry.)
+          tracked (tracked-open-files registry "open-files-test")]
+      (try
+        (.setMaxOpenFiles registry 8)
+        (doseq [path paths]
+          (.registerFile registry path))
+        (testing "concurrent reads across more files than the limit all succeed"
+          (is (every? true?
+                      (race 8 (fn []
+                                (every? (fn [i]
+                                          (let [buffer (byte-array 7)]
+                                            (and (.readFully registry (paths i) 0 buffer 0 7)
+                                                 (= (format "file-%02d" i) (String. buffer "UTF-8")))))
+                                        (take 500 (repeatedly #(rand-int 20)))))))))
+        (testing "descriptors are closed down to the limit"
+          (is (<= (tracked) 8)))
+        (testing "a file whose descriptor was closed is reopened on its next read"
+          (is (= "file-00" (String. (.getBytes registry (paths 0)) "UTF-8"))))
+        (finally
+          (.destroy registry))))))
+
+(deftest reports-open-descriptors-without-a-limit
+  (with-temp-dir [dir]
+    (let [registry (HadoopCacheRegistry.)
+          tracked (tracked-open-files registry "open-files-unlimited-test")]
+      (try
+        (doseq [i (range 5)]
+          (.registerFile registry (write-file (File. dir (str "f" i)) "contents")))
+        (is (= 5 (tracked)))
+        (.unregister registry (str (File. dir "f0")))
+        (is (= 4 (tracked)))
+        (finally
+          (.destroy registry))))))
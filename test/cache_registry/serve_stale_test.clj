@@ -0,0 +1,66 @@
+(ns cache-registry.serve-stale-test
+  (:import [java.io File]
+           [java.util.concurrent CountDownLatch TimeUnit]
+           [org.apache.commons.io IOUtils]
+           [org.cache.fs StreamLease]
+           [org.cache.fs.impl LocalCacheRegistry]
+           [org.cache.fs.sys CachedFile])
+  (:require [clojure.test :refer :all]
+            [cache-registry.test-util :refer :all]))
+
+(defn- slow-close
+  "@return the file, whose close signals the first latch and then waits on the second"
+  [^CachedFile f ^CountDownLatch closing ^CountDownLatch release]
+  (reify CachedFile
+    (isStale [_] (.isStale f))
+    (setStaleFlag [_] (.setStaleFlag f))
+    (lastModified [_] (.lastModified f))
+    (length [_] (.length f))
+    (version [_] (.version f))
+    (open [_] (.open f))
+    (close [_]
+      (.countDown closing)
+      (.await release 10 TimeUnit/SECONDS)
+      (.close f))
+    (cachedInputStream [_] (.cachedInputStream f))
+    (newInputStream [_] (.newInputStream f))
+    (openHandle [_] (.openHandle f))
+    (^int read [_ ^long position ^bytes buffer ^int offset ^int length]
+      (.read f position buffer offset length))
+    (^int read [_ ^long position ^java.nio.ByteBuffer dst]
+      (.read f position dst))
+    (readFully [_ position buffer offset length]
+      (.readFully f position buffer offset length))))
+
+(deftest stale-readers-lease-the-held-version-during-reload
+  (with-temp-dir [dir]
+    (let [f (File. dir "stale")
+          path (write-file f "one" 1000000)
+          closing (CountDownLatch. 1)
+          release (CountDownLatch. 1)
+          registry (proxy [LocalCacheRegistry] []
+                     (registerCacheFile [path mkfile]
+                       (slow-close (proxy-super registerCacheFile path mkfile) closing release)))]
+      (try
+        (.setStatusTtl registry 0)
+        (.setServeStale registry true)
+        (let [cached (.getStream registry path)]
+          (write-file f "two!" 2000000)
+          (let [fresh (future (.getStream registry path))]
+            (is (.await closing 10 TimeUnit/SECONDS))
+            (testing "a reader leasing during the reload is served without waiting"
+              (with-open [lease (.acquire registry path)]
+                (is (instance? StreamLease lease))
+                (is (contains? #{"one" "two!"} (IOUtils/toString lease "UTF-8")))))
+            (let [waiting (future (.getStream registry path))]
+              (testing "a reader of the cached stream waits for the reload"
+                (Thread/sleep 200)
+                (is (not (realized? waiting))))
+              (.countDown release)
+              (testing "both readers of the cached stream are served the one new stream"
+                (is (not (identical? cached @fresh)))
+                (is (identical? @fresh @waiting))
+                (is (= "two!" (IOUtils/toString @fresh "UTF-8")))))))
+        (finally
+          (.countDown release)
+          (.destroy registry))))))
@@ -0,0 +1,43 @@
+(ns cache-registry.snapshot-test
+  (:import [java.io File]
+           [org.cache.fs.impl HadoopCacheRegistry])
+  (:require [clojure.test :refer :all]
+            [cache-registry.test-util :refer :all]))
+
+(deftest snapshot-round-trip
+  (with-temp-dir [dir]
+    (let [data (doto (File. dir "data") (.mkdirs))
+          kept (write-file (File. data "kept") "kept contents" 1000000)
+          changed (write-file (File. data "changed") "old contents" 1000000)
+          removed (write-file (File. data "removed") "removed contents" 1000000)
+          snapshot (str (File. dir "registry.snapshot"))
+          saver (HadoopCacheRegistry.)]
+      (try
+        (.registerDirectory saver (str data))
+        (doseq [path [kept changed removed]]
+          (.getBytes saver path))
+        (is (.saveSnapshot saver snapshot true))
+        (finally
+          (.destroy saver)))
+      (testing "the snapshot is renamed into place, leaving no temporary file"
+        (is (= #{"data" "registry.snapshot"} (set (.list dir)))))
+      (write-file (File. changed) "new contents!" 2000000)
+      (.delete (File. removed))
+      (let [registry (HadoopCacheRegistry.)
+            [sink counts] (call-counter)]
+        (try
+          (.addMetricsSink registry sink)
+          (let [restored (set (.restoreSnapshot registry snapshot))]
+            (testing "the directory and the files still present are restored"
+              (is (= #{(str data) kept changed} restored))))
+          (testing "unchanged contents are served from the snapshot without opening the file"
+            (is (= "kept contents" (String. (.getBytes registry kept) "UTF-8")))
+            (is (nil? (get @counts "fs.open"))))
+          (testing "changed files are read afresh"
+            (is (= "new contents!" (String. (.getBytes registry changed) "UTF-8"))))
+          (testing "the directory listing reflects the files present"
+            (is (= #{"kept" "changed"}
+                   (set (for [child (.list registry (str data))]
+                          (subs child (inc (.lastIndexOf child "/"))))))))
+          (finally
+            (.destroy registry)))))))
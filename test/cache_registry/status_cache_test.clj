@@ -0,0 +1,46 @@
+(ns cache-registry.status-cache-test
+  (:import [java.io File]
+           [org.cache.fs.impl HadoopCacheRegistry])
+  (:require [clojure.test :refer :all]
+            [cache-registry.test-util :refer :all]))
+
+(deftest statuses-are-not-held-by-default
+  (with-temp-dir [dir]
+    (let [path (write-file (File. dir "f") "f")
+          registry (HadoopCacheRegistry.)
+          [sink counts] (call-counter)]
+      (try
+        (.addMetricsSink registry sink)
+        (dotimes [_ 2]
+          (.exists registry path))
+        (is (= 2 (get @counts "fs.getFileStatus")))
+        (finally
+          (.destroy registry))))))
+
+(deftest changes-drop-only-the-statuses-they-affect
+  (with-temp-dir [dir]
+    (let [kept (write-file (File. (doto (File. dir "kept") (.mkdirs)) "f") "f")
+          deleted (write-file (File. (doto (File. dir "deleted") (.mkdirs)) "f") "f")
+          moved (write-file (File. (doto (File. dir "moved") (.mkdirs)) "f") "f")
+          registry (HadoopCacheRegistry.)
+          [sink counts] (call-counter)
+          calls #(get @counts "fs.getFileStatus" 0)]
+      (try
+        (.setStatusTtl registry 60000)
+        (.addMetricsSink registry sink)
+        (doseq [path [kept deleted moved]]
+          (is (.exists registry path)))
+        (.delete registry deleted)
+        (.move registry (str (File. dir "moved")) (str (File. dir "moved-away")))
+        (reset! counts {})
+        (testing "statuses of paths untouched by the changes are still held"
+          (is (.exists registry kept))
+          (is (zero? (calls))))
+        (testing "a deleted path is fetched again"
+          (is (not (.exists registry deleted)))
+          (is (= 1 (calls))))
+        (testing "paths beneath a moved directory are fetched again"
+          (is (not (.exists registry moved)))
+          (is (.exists registry (str (File. (File. dir "moved-away") "f")))))
+        (finally
+          (.destroy registry))))))
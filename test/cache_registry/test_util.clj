@@ -0,0 +1,63 @@
+(ns cache-registry.test-util
+  (:import [java.io File]
+           [java.nio.file Files StandardCopyOption]
+           [java.nio.file.attribute FileAttribute]
+           [org.apache.commons.io FileUtils]
+           [org.cache.fs MetricsSink]))
+
+(defn temp-dir
+  "Create a new temporary directory, deleted on exit"
+  []
+  (let [dir (.toFile (Files/createTempDirectory "cache-registry" (make-array FileAttribute 0)))]
+    (.deleteOnExit dir)
+    dir))
+
+(defmacro with-temp-dir
+  "Bind the name to a new temporary directory for the body, deleting it afterwards"
+  [[name] & body]
+  `(let [~name (temp-dir)]
+     (try
+       ~@body
+       (finally
+         (FileUtils/deleteQuietly ~name)))))
+
+(defn write-file
+  "Write the string to the file, replacing it through a rename such that descriptors still open on
+  the previous version keep reading it, and stamp the given modification time"
+  ([^File f ^String s]
+     (write-file f s (System/currentTimeMillis)))
+  ([^File f ^String s mod-time]
+     (let [tmp (File. (.getParentFile f) (str "." (.getName f) ".tmp"))]
+       (FileUtils/writeStringToFile tmp s "UTF-8")
+       (.setLastModified tmp mod-time)
+       (Files/move (.toPath tmp) (.toPath f)
+                   (into-array [StandardCopyOption/REPLACE_EXISTING StandardCopyOption/ATOMIC_MOVE]))
+       (str f))))
+
+(defn call-counter
+  "@return a MetricsSink counting the timings recorded under each name, and the atom it counts in"
+  []
+  (let [counts (atom {})]
+    [(reify MetricsSink
+       (increment [_ name]
+         (swap! counts update-in [(str "+" name)] (fnil inc 0)))
+       (record [_ name nanos]
+         (swap! counts update-in [name] (fnil inc 0))))
+     counts]))
+
+(defn race
+  "Run the function on n threads released at once, returning their results in order"
+  [n f]
+  (let [start (java.util.concurrent.CountDownLatch. 1)
+        futures (doall (for [_ (range n)] (future (.await start) (f))))]
+    (.countDown start)
+    (mapv deref futures)))
+
+(defn eventually
+  "@return the first truthy result of calling f within ten seconds, else nil"
+  [f]
+  (loop [deadline (+ (System/currentTimeMillis) 10000)]
+    (or (f)
+        (when (< (System/currentTimeMillis) deadline)
+          (Thread/sleep 10)
+          (recur deadline)))))